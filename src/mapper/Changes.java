@@ -0,0 +1,44 @@
+package mapper;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Rows inserted or changed since a watermark, obtained with {@link QueryMapper#fetchChangesSince(Object, Map)}.
+ *
+ * @param <T> Mapped class type
+ * @author luastan
+ * @author CardamaS99
+ * @author danimf99
+ * @author alvrogd
+ * @author OswaldOswin1
+ * @author Marcos-marpin
+ */
+public class Changes<T> {
+    private final List<T> items;
+    private final Object watermark;
+
+    public Changes(List<T> items, Object watermark) {
+        this.items = items;
+        this.watermark = watermark;
+    }
+
+    /**
+     * @return mapped objects inserted or changed since the previous watermark, sorted by their watermark
+     */
+    public List<T> getItems() {
+        return items;
+    }
+
+    /**
+     * @return watermark to be passed to the next call in order to obtain the following changes; the previous one
+     * when there were no changes
+     */
+    public Object getWatermark() {
+        return watermark;
+    }
+
+    public boolean isEmpty() {
+        return items.isEmpty();
+    }
+}
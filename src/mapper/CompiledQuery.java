@@ -0,0 +1,148 @@
+package mapper;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Query compiled once and executed many times, possibly by several threads at the same time. Unlike a
+ * {@link QueryMapper QueryMapper}, it holds no state of a single execution: each one borrows a connection from the
+ * router, binds its own parameters and gives the connection back, so a compiled query can be stored in a static field
+ * and shared.
+ * <pre>
+ * private static final CompiledQuery&lt;Post&gt; POSTS_BY_AUTHOR = CompiledQuery.of(router, Post.class,
+ *         "SELECT * FROM post WHERE author = ?");
+ *
+ * List&lt;Post&gt; posts = POSTS_BY_AUTHOR.list("id2");
+ * </pre>
+ * The binder of the results is resolved by the first execution and kept, so later executions skip the resolution of
+ * fields, columns and constructor. The statement is prepared by every execution and closed once it finishes:
+ * connection pools hand out a different connection (or a different wrapper of the same one) on every borrow and
+ * close the statements of the connections given back to them, so statements cannot be kept between executions.
+ * Enable the statement cache of the driver or the pool to avoid preparing the same SQL on the database again.
+ *
+ * @param <T> Mapped class type
+ * @author luastan
+ * @author CardamaS99
+ * @author danimf99
+ * @author alvrogd
+ * @author OswaldOswin1
+ * @author Marcos-marpin
+ */
+public final class CompiledQuery<T> {
+
+    private final ConnectionRouter router;
+    private final Class<T> mappedClass;
+    private final String sql;
+    private final FetchPlan plan;
+
+    // Binder of the results, resolved by the first execution
+    private volatile RowBinder<? extends T> binder;
+
+    private CompiledQuery(ConnectionRouter router, Class<T> mappedClass, String sql, FetchPlan plan) {
+        this.router = router;
+        this.mappedClass = mappedClass;
+        this.sql = sql;
+        this.plan = plan;
+    }
+
+    /**
+     * Compiles a query
+     *
+     * @param router router providing the connections; queries are sent to its replicas
+     * @param clase  class used to map the results
+     * @param sql    SQL code of the query, which may contain ? parameters
+     * @return the compiled query, which does not load foreign keys
+     */
+    public static <T> CompiledQuery<T> of(ConnectionRouter router, Class<T> clase, String sql) {
+        return new CompiledQuery<>(router, clase, sql, FetchPlan.NONE);
+    }
+
+    /**
+     * Obtains a copy of the query which loads the foreign keys of the given plan. Check
+     * {@link QueryMapper#list(FetchPlan)}
+     *
+     * @param fetchPlan foreign keys to be loaded
+     * @return the new compiled query, which shares the binder of this one
+     */
+    public CompiledQuery<T> withFetchPlan(FetchPlan fetchPlan) {
+        CompiledQuery<T> copy = new CompiledQuery<>(router, mappedClass, sql, fetchPlan);
+        copy.binder = binder;
+        return copy;
+    }
+
+    public String getSql() {
+        return sql;
+    }
+
+    public Class<T> getMappedClass() {
+        return mappedClass;
+    }
+
+    /**
+     * Executes the query
+     *
+     * @param parameters values of the ? parameters of the query, in order
+     * @return Mapped objects from the query
+     */
+    public List<T> list(Object... parameters) throws Exception {
+        Connection connection;
+
+        try {
+            connection = router.acquire(false);
+        } catch (SQLException e) {
+            throw MapperException.of(e);
+        }
+
+        try {
+            QueryMapper<T> mapper = new QueryMapper<T>(connection).defineClass(mappedClass);
+            PreparedStatement statement;
+            try {
+                statement = mapper.prepare(sql, MapperListener.Operation.QUERY, Mapper.tableName(mappedClass));
+            } catch (SQLException e) {
+                throw MapperException.of(e);
+            }
+
+            try {
+                mapper.useCompiled(statement, sql, binder).defineParametersList(Arrays.asList(parameters));
+
+                List<T> results = plan.isEmpty() ? mapper.list(false) : mapper.list(plan);
+                if (binder == null) {
+                    binder = mapper.getCompiledBinder();
+                }
+
+                return results;
+            } finally {
+                closeQuietly(statement);
+            }
+        } finally {
+            try {
+                router.release(connection);
+            } catch (SQLException ignored) {
+                // The connection is discarded anyway
+            }
+        }
+    }
+
+    /**
+     * Executes the query and returns its first result. Add a LIMIT clause to the query when it may return several
+     * rows.
+     *
+     * @param parameters values of the ? parameters of the query, in order
+     * @return First element from the results; null when there are none
+     */
+    public T findFirst(Object... parameters) throws Exception {
+        List<T> results = list(parameters);
+        return results.isEmpty() ? null : results.get(0);
+    }
+
+    private static void closeQuietly(PreparedStatement statement) {
+        try {
+            statement.close();
+        } catch (SQLException ignored) {
+            // Nothing else can be done with it
+        }
+    }
+}
@@ -0,0 +1,290 @@
+package mapper;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Provides the connections of the mappers created with it, sending the writes to a primary database and spreading
+ * the reads between its replicas. Query mappers take their connections from the replicas, and the rest of mappers
+ * (as well as {@link Mapper#executeUpdate()}) from the primary.
+ * <p>
+ * Connections are borrowed from the data sources when a mapper prepares its statement and given back by closing them
+ * once the operation has finished, so the data sources should be connection pools. Any DataSource works, including
+ * the ones of embedded databases (for example, one in-memory H2 database per replica), which is handy for tests:
+ * <pre>
+ * ConnectionRouter router = new ConnectionRouter(primary, Arrays.asList(replica1, replica2),
+ *         ConnectionRouter.Balancing.LEAST_IN_FLIGHT);
+ *
+ * List&lt;Post&gt; posts = new QueryMapper&lt;Post&gt;(router).defineClass(Post.class).createSelect(null).list();
+ *
+ * // Inside a unit of work every mapper of the thread uses the same primary connection, in a single transaction
+ * try (ConnectionRouter.UnitOfWork unit = router.begin()) {
+ *     new InsertionMapper&lt;Post&gt;(router).defineClass(Post.class).add(post).insert();
+ *     Post stored = new QueryMapper&lt;Post&gt;(router).defineClass(Post.class).createSelect("id = ?")
+ *             .defineParameters(post.getId()).findFirst();
+ *     unit.commit();
+ * }
+ * </pre>
+ *
+ * @author luastan
+ * @author CardamaS99
+ * @author danimf99
+ * @author alvrogd
+ * @author OswaldOswin1
+ * @author Marcos-marpin
+ */
+public class ConnectionRouter {
+
+    /**
+     * Ways of choosing the replica that serves a read
+     */
+    public enum Balancing {
+        /**
+         * Every replica in turn
+         */
+        ROUND_ROBIN,
+
+        /**
+         * The replica with the fewest connections currently borrowed
+         */
+        LEAST_IN_FLIGHT
+    }
+
+    private final DataSource primary;
+    private final List<DataSource> replicas;
+    private final Balancing balancing;
+
+    // Connections currently borrowed from each replica
+    private final AtomicInteger[] inFlight;
+    private final AtomicInteger nextReplica = new AtomicInteger();
+
+    // Replica of each borrowed replica connection
+    private final ConcurrentHashMap<Connection, Integer> borrowed = new ConcurrentHashMap<>();
+
+    private final ThreadLocal<UnitOfWork> unitOfWork = new ThreadLocal<>();
+
+    /**
+     * @param primary   data source of the primary database
+     * @param replicas  data sources of the read replicas; when there are none, reads go to the primary too
+     * @param balancing way of choosing the replica that serves each read
+     */
+    public ConnectionRouter(DataSource primary, List<DataSource> replicas, Balancing balancing) {
+        this.primary = primary;
+        this.replicas = new ArrayList<>(replicas);
+        this.balancing = balancing;
+        this.inFlight = new AtomicInteger[replicas.size()];
+
+        for (int i = 0; i < inFlight.length; i++) {
+            inFlight[i] = new AtomicInteger();
+        }
+    }
+
+    /**
+     * Creates a router without replicas, which sends every operation to the primary
+     *
+     * @param primary data source of the primary database
+     */
+    public ConnectionRouter(DataSource primary) {
+        this(primary, new ArrayList<>(), Balancing.ROUND_ROBIN);
+    }
+
+    /**
+     * Borrows a connection. Inside a unit of work, the connection of the unit is returned for both reads and writes.
+     *
+     * @param write true when the connection is going to write
+     * @return a connection to the primary when writing, or to one of the replicas otherwise
+     */
+    public Connection acquire(boolean write) throws SQLException {
+        UnitOfWork unit = unitOfWork.get();
+        if (unit != null) {
+            return unit.connection;
+        }
+        if (write || replicas.isEmpty()) {
+            return primary.getConnection();
+        }
+
+        int replica = chooseReplica();
+        inFlight[replica].incrementAndGet();
+        try {
+            Connection connection = replicas.get(replica).getConnection();
+            borrowed.put(connection, replica);
+            return connection;
+        } catch (SQLException e) {
+            inFlight[replica].decrementAndGet();
+            throw e;
+        }
+    }
+
+    /**
+     * Gives back a connection obtained from {@link ConnectionRouter#acquire(boolean)}. The connection of a unit of
+     * work stays open until the unit is closed.
+     *
+     * @param connection borrowed connection
+     */
+    public void release(Connection connection) throws SQLException {
+        UnitOfWork unit = unitOfWork.get();
+        if (unit != null && unit.connection == connection) {
+            return;
+        }
+
+        Integer replica = borrowed.remove(connection);
+        if (replica != null) {
+            inFlight[replica].decrementAndGet();
+        }
+        connection.close();
+    }
+
+    /**
+     * Starts a unit of work on the current thread: until it is closed, every mapper of the thread created with this
+     * router uses the same connection to the primary, with auto-commit disabled, so reads see the writes of the unit.
+     * Units of work started while another one is open join it, and only the outermost one commits.
+     *
+     * @return the unit of work, to be committed and closed
+     */
+    public UnitOfWork begin() throws SQLException {
+        UnitOfWork outermost = unitOfWork.get();
+
+        if (outermost != null) {
+            return new UnitOfWork(outermost);
+        }
+
+        Connection connection = primary.getConnection();
+        UnitOfWork unit;
+        try {
+            unit = new UnitOfWork(connection);
+        } catch (SQLException e) {
+            try {
+                connection.close();
+            } catch (SQLException close) {
+                e.addSuppressed(close);
+            }
+            throw e;
+        }
+
+        unitOfWork.set(unit);
+        return unit;
+    }
+
+    /**
+     * @return true when the current thread is inside a unit of work of this router
+     */
+    public boolean inUnitOfWork() {
+        return unitOfWork.get() != null;
+    }
+
+    /**
+     * @param replica index of the replica
+     * @return the number of connections currently borrowed from the replica
+     */
+    public int getInFlight(int replica) {
+        return inFlight[replica].get();
+    }
+
+    private int chooseReplica() {
+        int start = Math.floorMod(nextReplica.getAndIncrement(), replicas.size());
+
+        if (balancing == Balancing.ROUND_ROBIN) {
+            return start;
+        }
+
+        // Ties are broken in round robin order, so idle replicas share the load too
+        int chosen = start;
+        for (int i = 1; i < replicas.size(); i++) {
+            int candidate = (start + i) % replicas.size();
+            if (inFlight[candidate].get() < inFlight[chosen].get()) {
+                chosen = candidate;
+            }
+        }
+
+        return chosen;
+    }
+
+    /**
+     * Transaction on the primary shared by every mapper of a thread. Closing it without committing rolls it back.
+     */
+    public final class UnitOfWork implements AutoCloseable {
+        private final Connection connection;
+        private final UnitOfWork outermost;
+        private final boolean autoCommit;
+        private final int isolation;
+        private boolean committed = false;
+        private boolean closed = false;
+
+        // Set on the outermost unit when a nested one is closed without committing
+        private boolean rollbackOnly = false;
+
+        private UnitOfWork(Connection connection) throws SQLException {
+            this.connection = connection;
+            this.outermost = this;
+            this.autoCommit = connection.getAutoCommit();
+            this.isolation = connection.getTransactionIsolation();
+            connection.setAutoCommit(false);
+        }
+
+        private UnitOfWork(UnitOfWork outermost) {
+            this.connection = outermost.connection;
+            this.outermost = outermost;
+            this.autoCommit = outermost.autoCommit;
+            this.isolation = outermost.isolation;
+        }
+
+        public Connection getConnection() {
+            return connection;
+        }
+
+        /**
+         * Commits the unit of work. Nested units only record that they finished successfully, as the outermost one
+         * commits.
+         *
+         * @throws SQLException when a nested unit was closed without committing, which rolls back the whole unit
+         */
+        public void commit() throws SQLException {
+            if (closed || committed) {
+                throw new SQLException("The unit of work has already finished");
+            }
+            if (outermost == this) {
+                if (rollbackOnly) {
+                    throw new SQLException("A nested unit of work was not committed, so the unit is rolled back");
+                }
+                connection.commit();
+            }
+
+            committed = true;
+        }
+
+        /**
+         * Ends the unit of work, rolling it back when it was not committed, and gives the connection back with the
+         * auto-commit mode and isolation level it had
+         */
+        @Override
+        public void close() throws SQLException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+
+            if (outermost != this) {
+                outermost.rollbackOnly |= !committed;
+                return;
+            }
+
+            unitOfWork.remove();
+            try {
+                if (!committed) {
+                    connection.rollback();
+                }
+                if (connection.getTransactionIsolation() != isolation) {
+                    connection.setTransactionIsolation(isolation);
+                }
+                connection.setAutoCommit(autoCommit);
+            } finally {
+                connection.close();
+            }
+        }
+    }
+}
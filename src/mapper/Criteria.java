@@ -0,0 +1,271 @@
+package mapper;
+
+import java.util.*;
+
+/**
+ * Query over the table of a mapped class built from filters on its columns, instead of hand-written SQL:
+ * <pre>
+ * Criteria&lt;Post&gt; criteria = Criteria.of(Post.class).eq("author", author).between("likes", 10, 100)
+ *         .in("category", categories).orderBy("id", true).limit(50);
+ *
+ * List&lt;Post&gt; posts = new QueryMapper&lt;Post&gt;(connection).createQuery(criteria).list();
+ * </pre>
+ * The generated SQL only depends on the shape of the criteria, never on its values, which are bound as parameters.
+ * Filters are written in a canonical order, so criteria with the same filters added in a different order produce
+ * the same SQL, and the size of IN lists is rounded up to the next of a few fixed sizes, repeating the last value.
+ * Statement caches and the plan cache of the database get hits instead of a different SQL string per call.
+ *
+ * @param <T> Mapped class type
+ * @author luastan
+ * @author CardamaS99
+ * @author danimf99
+ * @author alvrogd
+ * @author OswaldOswin1
+ * @author Marcos-marpin
+ */
+public class Criteria<T> {
+
+    // Sizes of the IN lists; longer lists are split into several lists of the largest size joined by OR
+    private static final int[] IN_SIZES = {1, 2, 4, 8, 16, 32, 64, 128, 256, 512};
+
+    private final Class<T> mappedClass;
+    private final EntityMetadata metadata;
+    private final List<Condition> conditions = new ArrayList<>();
+    private final List<String> order = new ArrayList<>();
+    private int limit = 0;
+
+    private Criteria(Class<T> mappedClass) {
+        this.mappedClass = mappedClass;
+        this.metadata = EntityMetadata.of(mappedClass);
+    }
+
+    /**
+     * Starts a criteria over the table of a class, which matches every row until some filter is added
+     *
+     * @param clase class annotated with {@link MapperTable MapperTable}
+     * @return the criteria
+     */
+    public static <T> Criteria<T> of(Class<T> clase) {
+        return new Criteria<>(clase);
+    }
+
+    public Class<T> getMappedClass() {
+        return mappedClass;
+    }
+
+    /**
+     * column = value; column IS NULL when the value is null
+     *
+     * @param column mapped column
+     * @param value  value of the column
+     * @return criteria which is being built
+     */
+    public Criteria<T> eq(String column, Object value) {
+        return value == null ? isNull(column) : add(column, " = ?", value);
+    }
+
+    /**
+     * column &lt;&gt; value; column IS NOT NULL when the value is null
+     *
+     * @param column mapped column
+     * @param value  value the column must differ from
+     * @return criteria which is being built
+     */
+    public Criteria<T> ne(String column, Object value) {
+        return value == null ? notNull(column) : add(column, " <> ?", value);
+    }
+
+    public Criteria<T> lt(String column, Object value) {
+        return add(column, " < ?", value);
+    }
+
+    public Criteria<T> le(String column, Object value) {
+        return add(column, " <= ?", value);
+    }
+
+    public Criteria<T> gt(String column, Object value) {
+        return add(column, " > ?", value);
+    }
+
+    public Criteria<T> ge(String column, Object value) {
+        return add(column, " >= ?", value);
+    }
+
+    /**
+     * column BETWEEN from AND to, both included
+     *
+     * @param column mapped column
+     * @param from   lower bound
+     * @param to     upper bound
+     * @return criteria which is being built
+     */
+    public Criteria<T> between(String column, Object from, Object to) {
+        return add(column, " BETWEEN ? AND ?", from, to);
+    }
+
+    public Criteria<T> isNull(String column) {
+        return add(column, " IS NULL");
+    }
+
+    public Criteria<T> notNull(String column) {
+        return add(column, " IS NOT NULL");
+    }
+
+    /**
+     * column IN (values). Repeated values are discarded, and the list is padded with its last value up to the next
+     * of the sizes 1, 2, 4, ..., 512; longer lists are split into lists of 512 values. An empty collection matches
+     * no row.
+     *
+     * @param column mapped column
+     * @param values values of the column
+     * @return criteria which is being built
+     */
+    public Criteria<T> in(String column, Collection<?> values) {
+        checkColumn(column);
+        List<Object> distinct = new ArrayList<>(new LinkedHashSet<>(values));
+
+        if (distinct.isEmpty()) {
+            conditions.add(new Condition("1 = 0", Collections.emptyList()));
+            return this;
+        }
+
+        int maxSize = IN_SIZES[IN_SIZES.length - 1];
+        StringBuilder builder = new StringBuilder();
+        List<Object> params = new ArrayList<>();
+
+        for (int from = 0; from < distinct.size(); from += maxSize) {
+            List<Object> chunk = distinct.subList(from, Math.min(from + maxSize, distinct.size()));
+            int size = bucket(chunk.size());
+
+            builder.append(from == 0 ? "" : " OR ").append(column).append(" IN (");
+            for (int i = 0; i < size; i++) {
+                builder.append(i == 0 ? "?" : ", ?");
+                params.add(chunk.get(Math.min(i, chunk.size() - 1)));
+            }
+            builder.append(")");
+        }
+
+        String condition = distinct.size() > maxSize ? "(" + builder + ")" : builder.toString();
+        conditions.add(new Condition(condition, params));
+        return this;
+    }
+
+    /**
+     * Adds a column to the order of the results, after the ones added before
+     *
+     * @param column    mapped column
+     * @param ascending false to sort in descending order
+     * @return criteria which is being built
+     */
+    public Criteria<T> orderBy(String column, boolean ascending) {
+        checkColumn(column);
+        order.add(ascending ? column : column + " DESC");
+        return this;
+    }
+
+    /**
+     * @param rows maximum number of rows returned; 0 or less returns every row
+     * @return criteria which is being built
+     */
+    public Criteria<T> limit(int rows) {
+        this.limit = rows;
+        return this;
+    }
+
+    /**
+     * @return the condition of the criteria, starting with " WHERE "; empty when there are no filters
+     */
+    public String getWhere() {
+        StringBuilder builder = new StringBuilder();
+
+        for (Condition condition : sortedConditions()) {
+            builder.append(builder.length() == 0 ? " WHERE " : " AND ").append(condition.sql);
+        }
+
+        return builder.toString();
+    }
+
+    /**
+     * @return the parameters of the condition, in the order of its ? placeholders
+     */
+    public List<Object> getWhereParameters() {
+        List<Object> params = new ArrayList<>();
+
+        for (Condition condition : sortedConditions()) {
+            params.addAll(condition.params);
+        }
+
+        return params;
+    }
+
+    /**
+     * @param dialect dialect of the database, which writes the row limit
+     * @return SELECT [COLUMNS] FROM [TABLE] WHERE ... ORDER BY ... LIMIT ?
+     */
+    public String getSql(SqlDialect dialect) {
+        StringBuilder builder = new StringBuilder("SELECT ").append(Mapper.selectColumns(mappedClass))
+                .append(" FROM ").append(metadata.getTable()).append(getWhere());
+
+        if (!order.isEmpty()) {
+            builder.append(" ORDER BY ").append(String.join(", ", order));
+        }
+        return limit > 0 ? dialect.limit(builder.toString()) : builder.toString();
+    }
+
+    /**
+     * @return the parameters of {@link Criteria#getSql(SqlDialect)}, in the order of its ? placeholders
+     */
+    public List<Object> getParameters() {
+        List<Object> params = getWhereParameters();
+
+        if (limit > 0) {
+            params.add(limit);
+        }
+
+        return params;
+    }
+
+    private Criteria<T> add(String column, String operator, Object... params) {
+        checkColumn(column);
+        conditions.add(new Condition(column + operator, Arrays.asList(params)));
+        return this;
+    }
+
+    private void checkColumn(String column) {
+        if (!metadata.getColumns().contains(column)) {
+            throw new IllegalArgumentException("Column " + column + " is not mapped by " + mappedClass.getName());
+        }
+    }
+
+    /**
+     * Conditions sorted by their SQL code, which makes the SQL independent of the order they were added in
+     */
+    private List<Condition> sortedConditions() {
+        List<Condition> sorted = new ArrayList<>(conditions);
+        sorted.sort(Comparator.comparing(condition -> condition.sql));
+        return sorted;
+    }
+
+    /**
+     * @return the smallest IN list size which can hold the given number of values
+     */
+    private static int bucket(int values) {
+        for (int size : IN_SIZES) {
+            if (size >= values) {
+                return size;
+            }
+        }
+
+        return IN_SIZES[IN_SIZES.length - 1];
+    }
+
+    private static final class Condition {
+        private final String sql;
+        private final List<Object> params;
+
+        private Condition(String sql, List<Object> params) {
+            this.sql = sql;
+            this.params = params;
+        }
+    }
+}
@@ -4,8 +4,11 @@ package mapper;
 
 import java.lang.reflect.Field;
 import java.sql.Connection;
+import java.sql.PreparedStatement;
 import java.sql.SQLException;
 import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
 
 
 /**
@@ -23,7 +26,6 @@ public class DeleteMapper<T> extends Mapper<T> {
     private List<T> elementsDelete;
     private String deleteUpdate;
     private ArrayList<String> columnsName;
-    private HashMap<String, Field> attributes;
 
     /**
      * @param connection Database conection
@@ -33,7 +35,16 @@ public class DeleteMapper<T> extends Mapper<T> {
         elementsDelete = new ArrayList<>();
         deleteUpdate = "";
         columnsName = new ArrayList<>();
-        attributes = new HashMap<>();
+    }
+
+    /**
+     * @param router Router providing the connections; deletions are sent to its primary database
+     */
+    public DeleteMapper(ConnectionRouter router) {
+        super(router, true);
+        elementsDelete = new ArrayList<>();
+        deleteUpdate = "";
+        columnsName = new ArrayList<>();
     }
 
     /**
@@ -84,83 +95,383 @@ public class DeleteMapper<T> extends Mapper<T> {
     }
 
     /**
-     * Extracts the primary keys and genterates the corresponding SQL code
+     * Defines the listener to be notified about the operations performed by this mapper
+     *
+     * @param listener listener to be used; null disables the notifications
+     * @return deletion mapper which is being built
      */
-    private void prepareDelete() throws Exception {
-        String columnName;
+    @Override
+    public DeleteMapper<T> setListener(MapperListener listener) {
+        return (DeleteMapper<T>) super.setListener(listener);
+    }
 
-        // SQL code base. Needed info gets extracted from the mapped class
-        StringBuilder deleteBuilder = new StringBuilder("DELETE FROM ")
-                .append(mappedClass.getAnnotation(MapperTable.class).nombre()).append(" WHERE ");
+    /**
+     * Defines the tracer that logs the statements executed by this mapper
+     *
+     * @param tracer tracer to be used; null disables the tracing
+     * @return deletion mapper which is being built
+     */
+    @Override
+    public DeleteMapper<T> setTracer(SqlTracer tracer) {
+        return (DeleteMapper<T>) super.setTracer(tracer);
+    }
 
-        // Loops over all the fields from the Mapped class
-        for (Field field : mappedClass.getDeclaredFields()) {
-            // Allows access from reflection
-            field.setAccessible(true);
-            // Performs the mapping only on the annotated classes
-            if (field.isAnnotationPresent(MapperColumn.class) && field.getAnnotation(MapperColumn.class).pkey()) {
-                // Column name extraction
-                // On empty / default column name specification uses the field name
-                columnName = extractColumnName(field);
+    /**
+     * Defines the SQL dialect used to generate the sentences that are not portable between databases
+     *
+     * @param dialect dialect to be used; null to detect it from the connection
+     * @return deletion mapper which is being built
+     */
+    @Override
+    public DeleteMapper<T> setDialect(SqlDialect dialect) {
+        return (DeleteMapper<T>) super.setDialect(dialect);
+    }
 
-                // Adds check conditions on every primary key
-                deleteBuilder.append(columnName).append(" = ? and ");
+    /**
+     * Limits the time the operations of the mapper can take, counted from now
+     *
+     * @param timeout maximum time; 0 or less removes the limit
+     * @param unit    unit of the timeout
+     * @return deletion mapper which is being built
+     */
+    @Override
+    public DeleteMapper<T> setTimeout(long timeout, TimeUnit unit) {
+        return (DeleteMapper<T>) super.setTimeout(timeout, unit);
+    }
 
-                // Column names and Class fields get stored to be used later on the deletion
-                this.columnsName.add(columnName);
-                this.attributes.put(columnName, field);
-            }
-        }
+    /**
+     * Extracts the primary keys and obtains the corresponding SQL code
+     */
+    private void prepareDelete() {
+        EntityMetadata metadata = EntityMetadata.of(mappedClass);
 
-        // Crops the deleteBuilder in order to get rid of the residual "and" added after each WHERE condition
-        deleteBuilder.delete(deleteBuilder.length() - 4, deleteBuilder.length());
+        // Stores the SQL code to be executed, compiled once per mapped class
+        deleteUpdate = SqlTemplates.delete(mappedClass);
 
-        // Stores the SQL code to be executed
-        deleteUpdate = deleteBuilder.toString();
+        // Column names of the primary keys, in the same order as the parameters of the SQL code
+        this.columnsName.clear();
+        this.columnsName.addAll(metadata.getPkColumns());
+    }
 
+    /**
+     * Deletes all the objects on the deletion pool, sending them as a single
+     * JDBC batch. When the mapped class has a {@link MapperColumn#version()
+     * version} column, rows whose version is not the one of their object are
+     * not deleted, and an {@link OptimisticLockException
+     * OptimisticLockException} is thrown once the batch has been executed.
+     * In auto-commit mode the batch then runs in a transaction of its own
+     * which is rolled back, so no row is deleted; inside a transaction which
+     * is already open, rolling it back is up to its owner.
+     */
+    public void delete() throws Exception {
         try {
-            // TODO: This code seems redundant to me. It gets lost on the delete() method
-            this.statement = super.connection.prepareStatement(deleteUpdate);
-        } catch (SQLException ex) {
-            throw new Exception(ex.getMessage());
+            prepareDelete();  // Builds the statement
+            String table = tableName(mappedClass);
+            long start;
+
+            // Configures the connection to the database
+            configureConnection();
+
+            Field versionField = EntityMetadata.of(mappedClass).getVersionField();
+
+            try {
+                // Versioned deletions are applied all together or not at all
+                Connection current = connection(false);
+                boolean transaction = versionField != null && current.getAutoCommit();
+
+                if (transaction) {
+                    current.setAutoCommit(false);
+                }
+                try {
+                    try (PreparedStatement statement = prepare(this.deleteUpdate, MapperListener.Operation.DELETE,
+                            table)) {
+                        // Loops over the deletion pool adding each object to the batch
+                        for (T object : this.elementsDelete) {
+                            // The atomic PKs
+                            Map<String, Object> atomicPKs = getAtomicPK(object);
+
+                            // Inserts all the primary key atributes previously extracted into the statement
+                            for (int i = 0; i < this.columnsName.size(); i++) {
+                                statement.setObject(i + 1, atomicPKs.get(this.columnsName.get(i)));
+                            }
+                            if (versionField != null) {
+                                statement.setObject(this.columnsName.size() + 1, versionField.get(object));
+                            }
+                            statement.addBatch();
+                        }
+
+                        // Deletion gets performed
+                        start = System.nanoTime();
+                        int[] counts = statement.executeBatch();
+                        long elapsed = System.nanoTime() - start;
+                        long deleted = Arrays.stream(counts).filter(count -> count > 0).asLongStream().sum();
+                        listener.statementExecuted(table, MapperListener.Operation.DELETE, elapsed, deleted);
+                        trace(table, this.deleteUpdate, null, elapsed, deleted);
+                        listener.batchExecuted(table, MapperListener.Operation.DELETE,
+                                this.elementsDelete.size());
+
+                        if (versionField != null) {
+                            List<Object> stale = staleObjects(counts, this.elementsDelete);
+                            if (!stale.isEmpty()) {
+                                throw new OptimisticLockException(table, stale);
+                            }
+                        }
+                    } catch (SQLException e) {
+                        throw MapperException.of(e);
+                    }
+                    if (transaction) {
+                        current.commit();
+                    }
+                } catch (Exception e) {
+                    if (transaction) {
+                        try {
+                            current.rollback();
+                        } catch (SQLException rollback) {
+                            e.addSuppressed(rollback);
+                        }
+                    }
+                    throw e;
+                } finally {
+                    if (transaction) {
+                        current.setAutoCommit(true);
+                    }
+                }
+            } catch (SQLException e) {
+                throw MapperException.of(e);
+            }
+        } finally {
+            releaseConnection();
         }
     }
 
     /**
-     * Deletes all the objects on the deletion pool
+     * Deletes every row of a table matched by a criteria with a single DELETE sentence, without loading the rows.
+     * The order and limit of the criteria are ignored, as are the versions of the rows.
+     *
+     * @param criteria criteria over the table of a mapped class, which becomes the mapped class
+     * @return number of rows deleted
      */
-    public void delete() throws Exception {
-        prepareDelete();  // Builds the statement
+    public long deleteWhere(Criteria<? extends T> criteria) throws Exception {
+        return deleteWhere(criteria, Collections.emptyList());
+    }
 
-        // Configures the connection to the database
-        configureConnection();
+    /**
+     * Deletes every row matched by a criteria along with the rows which depend on them, without loading any of them.
+     * The dependent classes are the given ones whose foreign keys ({@link MapperColumn#targetClass() targetClass}
+     * and {@link MapperColumn#fKeys() fKeys}) reference the class of the criteria, directly or through other
+     * dependent classes. Each of their tables gets a single set-based sentence, sent before the ones of the tables
+     * it references:
+     * <pre>
+     * DELETE FROM comment WHERE EXISTS (SELECT 1 FROM post t1 WHERE t1.id = comment.post AND (author = ?))
+     * DELETE FROM post WHERE author = ?
+     * </pre>
+     * References of a class to itself are not followed, so rows referencing deleted rows of their own table must be
+     * matched by the criteria too. When the connection is in auto-commit mode, the sentences run in a single
+     * transaction; otherwise they join the transaction already open.
+     *
+     * @param criteria   criteria over the table of a mapped class, which becomes the mapped class. Its order and
+     *                   limit are ignored
+     * @param dependents classes which may reference the class of the criteria; the rest are ignored
+     * @return number of rows deleted from the table of the criteria
+     * @throws IllegalArgumentException when the dependent classes reference each other in a cycle, so there is no
+     *                                  order in which they can be deleted
+     */
+    public long deleteWhere(Criteria<? extends T> criteria, Collection<Class<?>> dependents) throws Exception {
+        defineClass(criteria.getMappedClass());
+        List<Class<?>> order = deletionOrder(mappedClass, dependents);
+
+        // One sentence per dependent table, followed by the one of the table of the criteria
+        List<String> sentences = new ArrayList<>();
+        List<List<Object>> sentenceParams = new ArrayList<>();
+        for (Class<?> dependent : order) {
+            List<Object> params = new ArrayList<>();
+            String table = EntityMetadata.of(dependent).getTable();
+            String condition = dependentCondition(dependent, table.substring(table.lastIndexOf('.') + 1),
+                    new HashSet<>(order), criteria, params, new int[1]);
+            sentences.add("DELETE FROM " + table + " WHERE " + condition);
+            sentenceParams.add(params);
+        }
+        sentences.add("DELETE FROM " + EntityMetadata.of(mappedClass).getTable() + criteria.getWhere());
+        sentenceParams.add(criteria.getWhereParameters());
 
         try {
-            // Loops over the deletion pool deleting each object
-            for (T object : this.elementsDelete) {
-                // Statement gets created
-                this.statement = connection.prepareStatement(this.deleteUpdate);
-
-                // The atomic PKs
-                Map<String, Object> atomicPKs = getAtomicPK(object);
-                // Inserts all the primary key atributes previously extracted into the statement
-                for (int i = 0; i < this.columnsName.size(); i++) {
-                    Field field = this.attributes.get(this.columnsName.get(i));
-                    Object obj = field.get(object);
-
-                    if(!isAtomicClass(obj.getClass())){
-                        obj = atomicPKs.get(this.columnsName.get(i));
+            configureConnection();
+            Connection current = connection(false);
+            boolean transaction = sentences.size() > 1 && current.getAutoCommit();
+            long deleted = 0;
+
+            if (transaction) {
+                current.setAutoCommit(false);
+            }
+            try {
+                for (int i = 0; i < sentences.size(); i++) {
+                    Class<?> clase = i < order.size() ? order.get(i) : mappedClass;
+                    deleted = executeDelete(tableName(clase), sentences.get(i), sentenceParams.get(i));
+                }
+                if (transaction) {
+                    current.commit();
+                }
+            } catch (Exception e) {
+                if (transaction) {
+                    try {
+                        current.rollback();
+                    } catch (SQLException rollback) {
+                        e.addSuppressed(rollback);
                     }
+                }
+                throw e;
+            } finally {
+                if (transaction) {
+                    current.setAutoCommit(true);
+                }
+            }
+
+            return deleted;
+        } catch (SQLException e) {
+            throw MapperException.of(e);
+        } finally {
+            releaseConnection();
+        }
+    }
+
+    /**
+     * Executes a set-based deletion
+     *
+     * @return number of rows deleted
+     */
+    private long executeDelete(String table, String sentence, List<Object> params) throws SQLException {
+        try (PreparedStatement statement = prepare(sentence, MapperListener.Operation.DELETE, table)) {
+            for (int i = 0; i < params.size(); i++) {
+                statement.setObject(i + 1, params.get(i));
+            }
+
+            long start = System.nanoTime();
+            long deleted = statement.executeUpdate();
+            long elapsed = System.nanoTime() - start;
+            listener.statementExecuted(table, MapperListener.Operation.DELETE, elapsed, deleted);
+            trace(table, sentence, params, elapsed, deleted);
+            return deleted;
+        }
+    }
 
-                    statement.setObject(i + 1, obj);
+    /**
+     * Chooses the dependent classes which reference the root class, directly or through other dependent classes,
+     * and sorts them so every class comes before the classes it references
+     *
+     * @return the classes to be deleted before the root one, in deletion order
+     */
+    private static List<Class<?>> deletionOrder(Class<?> root, Collection<Class<?>> dependents) {
+        Set<Class<?>> reached = new LinkedHashSet<>();
+        reached.add(root);
+
+        for (boolean grown = true; grown; ) {
+            grown = false;
+            for (Class<?> dependent : dependents) {
+                if (!reached.contains(dependent) && !references(dependent, reached).isEmpty()) {
+                    grown = reached.add(dependent);
                 }
+            }
+        }
 
-                // Deletion gets performed
-                this.statement.executeUpdate();
+        // A class can be deleted once no remaining class references it
+        List<Class<?>> order = new ArrayList<>();
+        Set<Class<?>> remaining = new LinkedHashSet<>(reached);
+        remaining.remove(root);
+        while (!remaining.isEmpty()) {
+            Class<?> next = null;
+            for (Class<?> candidate : remaining) {
+                boolean referenced = false;
+                for (Class<?> other : remaining) {
+                    referenced |= !references(other, Collections.singleton(candidate)).isEmpty();
+                }
+                if (!referenced) {
+                    next = candidate;
+                    break;
+                }
+            }
+            if (next == null) {
+                throw new IllegalArgumentException("The classes " + remaining + " reference each other in a cycle");
+            }
+            order.add(next);
+            remaining.remove(next);
+        }
+
+        return order;
+    }
+
+    /**
+     * Obtains the foreign keys of a class which reference any of the given classes, other than itself
+     */
+    private static List<Field> references(Class<?> clase, Set<Class<?>> targets) {
+        List<Field> fields = new ArrayList<>();
+
+        for (Field field : EntityMetadata.of(clase).getForeignKeyColumns().keySet()) {
+            Class<?> target = field.getAnnotation(MapperColumn.class).targetClass();
+            if (target != clase && targets.contains(target)) {
+                fields.add(field);
             }
-        } catch (SQLException | IllegalAccessException e) {
-            e.printStackTrace();
-            throw new Exception(e.getMessage());
         }
+
+        return fields;
+    }
+
+    /**
+     * Builds the condition matching the rows of a dependent class which reference a deleted row of any of the
+     * classes it depends on: EXISTS (SELECT 1 FROM [TARGET] tN WHERE tN.[PK] = [ROW].[FK] AND [TARGET CONDITION]),
+     * joined by OR
+     *
+     * @param clase    dependent class
+     * @param row      name by which the row of the class is referenced in the condition
+     * @param deleted  dependent classes being deleted
+     * @param criteria criteria matching the deleted rows of the root class
+     * @param params   list receiving the parameters of the condition, in order
+     * @param aliases  number of aliases already used in the sentence
+     * @return the condition
+     */
+    private String dependentCondition(Class<?> clase, String row, Set<Class<?>> deleted, Criteria<?> criteria,
+                                      List<Object> params, int[] aliases) {
+        Set<Class<?>> targets = new HashSet<>(deleted);
+        targets.add(mappedClass);
+        StringJoiner conditions = new StringJoiner(" OR ");
+
+        for (Field field : references(clase, targets)) {
+            MapperColumn annotation = field.getAnnotation(MapperColumn.class);
+            Class<?> target = annotation.targetClass();
+            String alias = "t" + (++aliases[0]);
+            StringBuilder builder = new StringBuilder("EXISTS (SELECT 1 FROM ")
+                    .append(EntityMetadata.of(target).getTable()).append(' ').append(alias).append(" WHERE ");
+
+            // Local column and referenced column of each part of the foreign key
+            List<String> locals = EntityMetadata.of(clase).getForeignKeyColumns().get(field);
+            List<String> referenced = new ArrayList<>();
+            if (annotation.fKeys().equals("")) {
+                referenced.addAll(EntityMetadata.of(target).getPkColumns());
+            } else {
+                Matcher matcher = regexFKeys.matcher(annotation.fKeys());
+                while (matcher.find()) {
+                    referenced.add(matcher.group(2));
+                }
+            }
+            for (int i = 0; i < locals.size(); i++) {
+                builder.append(i == 0 ? "" : " AND ").append(alias).append('.').append(referenced.get(i))
+                        .append(" = ").append(row).append('.').append(locals.get(i));
+            }
+
+            // Unqualified columns of the criteria resolve to the closest table, which is the one of the root class
+            if (target == mappedClass) {
+                String where = criteria.getWhere();
+                if (!where.isEmpty()) {
+                    builder.append(" AND (").append(where.substring(" WHERE ".length())).append(')');
+                    params.addAll(criteria.getWhereParameters());
+                }
+            } else {
+                builder.append(" AND (")
+                        .append(dependentCondition(target, alias, deleted, criteria, params, aliases)).append(')');
+            }
+
+            conditions.add(builder.append(')'));
+        }
+
+        return conditions.toString();
     }
 }
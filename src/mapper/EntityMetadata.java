@@ -0,0 +1,200 @@
+package mapper;
+
+import java.lang.reflect.Field;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+
+/**
+ * Mapping information of a class annotated with {@link MapperTable MapperTable}, extracted once through reflection
+ * and shared by every mapper.
+ *
+ * @author luastan
+ * @author CardamaS99
+ * @author danimf99
+ * @author alvrogd
+ * @author OswaldOswin1
+ * @author Marcos-marpin
+ */
+public final class EntityMetadata {
+
+    private static final ConcurrentHashMap<Class<?>, EntityMetadata> METADATA = new ConcurrentHashMap<>();
+
+    private final Class<?> clase;
+    private final String table;
+
+    // Every column written by the class, in declaration order; foreign keys contribute their local columns
+    private final List<String> columns;
+
+    // Fields which are not foreign keys indexed by their column name
+    private final Map<String, Field> plainFields;
+
+    // Local columns of each foreign key field
+    private final Map<Field, List<String>> foreignKeyColumns;
+
+    private final List<String> pkColumns;
+    private final Set<String> defaultColumns;
+
+    // Column of the version field, used for optimistic locking; null when the class has none
+    private final String versionColumn;
+
+    private EntityMetadata(Class<?> clase) {
+        LinkedHashSet<String> allColumns = new LinkedHashSet<>();
+        LinkedHashMap<String, Field> plain = new LinkedHashMap<>();
+        LinkedHashMap<Field, List<String>> foreignKeys = new LinkedHashMap<>();
+        List<String> pks = new ArrayList<>();
+        LinkedHashSet<String> defaults = new LinkedHashSet<>();
+        String version = null;
+
+        for (Field field : clase.getDeclaredFields()) {
+            if (field.isAnnotationPresent(MapperColumn.class)) {
+                MapperColumn annotation = field.getAnnotation(MapperColumn.class);
+                String column = Mapper.extractColumnName(field);
+                field.setAccessible(true);
+
+                List<String> fieldColumns = new ArrayList<>();
+                if (annotation.fKeys().equals("")) {
+                    fieldColumns.add(column);
+                } else {
+                    Matcher matcher = Mapper.regexFKeys.matcher(annotation.fKeys());
+                    while (matcher.find()) {
+                        fieldColumns.add(matcher.group(1));
+                    }
+                }
+                allColumns.addAll(fieldColumns);
+
+                if (annotation.targetClass() == Object.class) {
+                    plain.put(column, field);
+                    if (annotation.hasDefault()) {
+                        defaults.add(column);
+                    }
+                    if (annotation.version()) {
+                        version = column;
+                    }
+                } else {
+                    foreignKeys.put(field, Collections.unmodifiableList(fieldColumns));
+                }
+
+                if (annotation.pkey()) {
+                    pks.add(column);
+                }
+            }
+        }
+
+        this.clase = clase;
+        this.table = Mapper.tableName(clase);
+        this.columns = Collections.unmodifiableList(new ArrayList<>(allColumns));
+        this.plainFields = Collections.unmodifiableMap(plain);
+        this.foreignKeyColumns = Collections.unmodifiableMap(foreignKeys);
+        this.pkColumns = Collections.unmodifiableList(pks);
+        this.defaultColumns = Collections.unmodifiableSet(defaults);
+        this.versionColumn = version;
+    }
+
+    /**
+     * Obtains the metadata of a mapped class, extracting it the first time it is needed
+     *
+     * @param clase class annotated with {@link MapperTable MapperTable}
+     * @return the metadata of the class
+     */
+    public static EntityMetadata of(Class<?> clase) {
+        EntityMetadata metadata = METADATA.get(clase);
+        return metadata != null ? metadata : METADATA.computeIfAbsent(clase, EntityMetadata::new);
+    }
+
+    public Class<?> getMappedClass() {
+        return clase;
+    }
+
+    public String getTable() {
+        return table;
+    }
+
+    /**
+     * @return every column written by the class, in declaration order. Bit i of the column masks used by
+     * {@link SqlTemplates SqlTemplates} refers to the column at position i.
+     */
+    public List<String> getColumns() {
+        return columns;
+    }
+
+    /**
+     * @return fields which are not foreign keys indexed by their column name
+     */
+    public Map<String, Field> getPlainFields() {
+        return plainFields;
+    }
+
+    /**
+     * @return local columns of each foreign key field
+     */
+    public Map<Field, List<String>> getForeignKeyColumns() {
+        return foreignKeyColumns;
+    }
+
+    /**
+     * @return primary key columns in declaration order
+     */
+    public List<String> getPkColumns() {
+        return pkColumns;
+    }
+
+    /**
+     * @return columns of the fields with a default value
+     */
+    public Set<String> getDefaultColumns() {
+        return defaultColumns;
+    }
+
+    /**
+     * @return column of the field annotated as version; null when the class has none
+     */
+    public String getVersionColumn() {
+        return versionColumn;
+    }
+
+    /**
+     * @return field annotated as version; null when the class has none
+     */
+    public Field getVersionField() {
+        return versionColumn == null ? null : plainFields.get(versionColumn);
+    }
+
+    /**
+     * Builds the mask of a set of columns
+     *
+     * @param selected column names
+     * @return the mask, where bit i is set when the column at position i of {@link EntityMetadata#getColumns()}
+     * is selected
+     * @throws IllegalArgumentException when a column is not mapped by the class
+     */
+    public BitSet mask(Collection<String> selected) {
+        BitSet mask = new BitSet(columns.size());
+
+        for (String column : selected) {
+            int index = columns.indexOf(column);
+            if (index < 0) {
+                throw new IllegalArgumentException("Column " + column + " is not mapped by " + clase.getName());
+            }
+            mask.set(index);
+        }
+
+        return mask;
+    }
+
+    /**
+     * Obtains the columns of a mask
+     *
+     * @param mask column mask
+     * @return the selected column names, in declaration order
+     */
+    public List<String> columns(BitSet mask) {
+        List<String> selected = new ArrayList<>(mask.cardinality());
+
+        for (int i = mask.nextSetBit(0); i >= 0; i = mask.nextSetBit(i + 1)) {
+            selected.add(columns.get(i));
+        }
+
+        return selected;
+    }
+}
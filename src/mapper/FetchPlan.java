@@ -0,0 +1,136 @@
+package mapper;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Describes which foreign keys must be loaded by {@link QueryMapper#list(FetchPlan)}, and how deep. Foreign keys are
+ * named by the path of Java fields from the mapped class, for example:
+ * <pre>
+ * // Loads the author of each post, and the parent of each post along with its author
+ * FetchPlan plan = FetchPlan.of("author", "parent.author");
+ *
+ * // Loads every foreign key, and the foreign keys of those, but no further
+ * FetchPlan plan = FetchPlan.depth(2);
+ * </pre>
+ *
+ * @author luastan
+ * @author CardamaS99
+ * @author danimf99
+ * @author alvrogd
+ * @author OswaldOswin1
+ * @author Marcos-marpin
+ */
+public class FetchPlan {
+
+    /**
+     * Plan which does not load any foreign key
+     */
+    public static final FetchPlan NONE = new FetchPlan(0);
+
+    // Plans of the foreign keys explicitly named, indexed by their field name
+    private final Map<String, FetchPlan> children;
+
+    // Number of levels of foreign keys loaded for the fields not explicitly named
+    private final int depth;
+
+    private FetchPlan(int depth) {
+        this.children = new LinkedHashMap<>();
+        this.depth = depth;
+    }
+
+    /**
+     * Creates a plan which loads the given field paths
+     *
+     * @param paths field names separated by dots, starting from the mapped class
+     * @return the fetch plan
+     */
+    public static FetchPlan of(String... paths) {
+        return new FetchPlan(0).with(paths);
+    }
+
+    /**
+     * Creates a plan which loads every foreign key up to the given number of levels
+     *
+     * @param levels number of levels; 1 loads the foreign keys of the mapped class only
+     * @return the fetch plan
+     */
+    public static FetchPlan depth(int levels) {
+        return new FetchPlan(Math.max(levels, 0));
+    }
+
+    /**
+     * Adds field paths to the plan
+     *
+     * @param paths field names separated by dots, starting from the mapped class
+     * @return the fetch plan instance
+     */
+    public FetchPlan with(String... paths) {
+        if (this == NONE) {
+            return of(paths);
+        }
+
+        for (String path : paths) {
+            FetchPlan node = this;
+            for (String field : path.split("\\.")) {
+                node = node.children.computeIfAbsent(field, k -> new FetchPlan(0));
+            }
+        }
+
+        return this;
+    }
+
+    /**
+     * @param field Java field name of a foreign key
+     * @return true when the foreign key must be loaded
+     */
+    public boolean includes(String field) {
+        return depth > 0 || children.containsKey(field);
+    }
+
+    /**
+     * @param field Java field name of a foreign key
+     * @return the plan to be applied to the objects referenced by the foreign key
+     */
+    public FetchPlan child(String field) {
+        FetchPlan child = children.get(field);
+
+        if (child == null) {
+            return depth > 1 ? depth(depth - 1) : NONE;
+        }
+
+        // An explicit path keeps loading the remaining levels of a depth based plan
+        return depth > 1 ? depth(depth - 1).merge(child) : child;
+    }
+
+    /**
+     * @return the plans of the explicitly named fields, indexed by their name
+     */
+    public Map<String, FetchPlan> getChildren() {
+        return Collections.unmodifiableMap(children);
+    }
+
+    public int getDepth() {
+        return depth;
+    }
+
+    public boolean isEmpty() {
+        return depth == 0 && children.isEmpty();
+    }
+
+    private FetchPlan merge(FetchPlan other) {
+        other.children.forEach((field, plan) -> children.merge(field, plan, (a, b) -> {
+            FetchPlan merged = new FetchPlan(Math.max(a.depth, b.depth));
+            merged.merge(a);
+            merged.merge(b);
+            return merged;
+        }));
+        return this;
+    }
+
+    @Override
+    public String toString() {
+        return (depth > 0 ? "depth=" + depth + " " : "") + children;
+    }
+}
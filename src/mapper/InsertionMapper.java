@@ -1,10 +1,20 @@
 package mapper;
 
+import java.io.DataInputStream;
+import java.io.IOException;
 import java.lang.reflect.Field;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
 import java.util.regex.Matcher;
 
 
@@ -27,6 +37,9 @@ public class InsertionMapper<E> extends Mapper<E> {
     private ArrayList<String> columnas;
     private HashMap<String, Field> atributos;
 
+    // Maximum number of rows sent by each batch of a custom insertion or an import
+    private static final int CUSTOM_BATCH_SIZE = 1000;
+
 
     public InsertionMapper(Connection conexion) {
         super(conexion);
@@ -36,6 +49,17 @@ public class InsertionMapper<E> extends Mapper<E> {
         atributos = new HashMap<>();
     }
 
+    /**
+     * @param router Router providing the connections; insertions are sent to its primary database
+     */
+    public InsertionMapper(ConnectionRouter router) {
+        super(router, true);
+        insertions = new ArrayList<>();
+        query = "";
+        columnas = new ArrayList<>();
+        atributos = new HashMap<>();
+    }
+
 
     /**
      * Defines the Class of the insertions
@@ -84,6 +108,51 @@ public class InsertionMapper<E> extends Mapper<E> {
         return((InsertionMapper<E>)super.setIsolationLevel(isolationLevel));
     }
 
+    /**
+     * Defines the listener to be notified about the operations performed by this mapper
+     *
+     * @param listener listener to be used; null disables the notifications
+     * @return insertion mapper which is being built
+     */
+    @Override
+    public InsertionMapper<E> setListener(MapperListener listener) {
+        return (InsertionMapper<E>) super.setListener(listener);
+    }
+
+    /**
+     * Defines the tracer that logs the statements executed by this mapper
+     *
+     * @param tracer tracer to be used; null disables the tracing
+     * @return insertion mapper which is being built
+     */
+    @Override
+    public InsertionMapper<E> setTracer(SqlTracer tracer) {
+        return (InsertionMapper<E>) super.setTracer(tracer);
+    }
+
+    /**
+     * Defines the SQL dialect used to generate the sentences that are not portable between databases
+     *
+     * @param dialect dialect to be used; null to detect it from the connection
+     * @return insertion mapper which is being built
+     */
+    @Override
+    public InsertionMapper<E> setDialect(SqlDialect dialect) {
+        return (InsertionMapper<E>) super.setDialect(dialect);
+    }
+
+    /**
+     * Limits the time the operations of the mapper can take, counted from now
+     *
+     * @param timeout maximum time; 0 or less removes the limit
+     * @param unit    unit of the timeout
+     * @return insertion mapper which is being built
+     */
+    @Override
+    public InsertionMapper<E> setTimeout(long timeout, TimeUnit unit) {
+        return (InsertionMapper<E>) super.setTimeout(timeout, unit);
+    }
+
     /**
      * Extracts the atributes and fields to be inserted into the database and
      * generates the corresponding SQL sentence base for the insertions
@@ -121,43 +190,298 @@ public class InsertionMapper<E> extends Mapper<E> {
      * example: A post wich has a parent wich is partially identified by its
      * user which is actually a custom declared Class, not a String or an
      * integer.
+     * <p>
+     * Elements are grouped by the columns they write, and each group is sent as
+     * a single JDBC batch. Columns with a default value which are null in the
+     * object are left to the database, and the values it generates for them
+     * (serial ids, default timestamps...) are written back into the objects.
      */
     public void insert() throws Exception {
-        Map<String, Object> insertion;
-        Class fieldClass;
-        String columnName;
-        Object atrib;
+        try {
+            EntityMetadata metadata = EntityMetadata.of(mappedClass);
+            String table = metadata.getTable();
+            Object atrib;
+
+            // Elements to be inserted indexed by the mask of the columns they write, keeping the order of the pool
+            LinkedHashMap<BitSet, List<Row<E>>> groups = new LinkedHashMap<>();
+
+            // Configures the connection to the database
+            configureConnection();
+
+            try {
+                for (E element : this.insertions) {
+                    HashMap<String, Object> insertion = new HashMap<>();
+                    for (Map.Entry<String, Field> field : metadata.getPlainFields().entrySet()) {
+                        atrib = field.getValue().get(element);
 
-        // Configures the connection to the database
-        configureConnection();
+                        // Versions start at 0
+                        if (atrib == null && field.getValue() == metadata.getVersionField()) {
+                            atrib = convert(0, field.getValue().getType());
+                            field.getValue().set(element, atrib);
+                        }
+                        // Checks for default values
+                        if (atrib != null || !metadata.getDefaultColumns().contains(field.getKey())) {
+                            insertion.put(field.getKey(), atrib);
+                        }
+                    }
+                    // Foreign keys; null references are not included
+                    insertion.putAll(getFKs(element));
+
+                    // Values in the same order as the columns of the template
+                    BitSet mask = metadata.mask(insertion.keySet());
+                    List<Object> values = new ArrayList<>(insertion.size());
+                    for (int i = mask.nextSetBit(0); i >= 0; i = mask.nextSetBit(i + 1)) {
+                        values.add(insertion.get(metadata.getColumns().get(i)));
+                    }
 
+                    groups.computeIfAbsent(mask, k -> new ArrayList<>()).add(new Row<>(element, values));
+                }
+            } catch (IllegalAccessException ex) {
+                throw MapperException.of(ex);
+            }
+
+            for (Map.Entry<BitSet, List<Row<E>>> group : groups.entrySet()) {
+                insertGroup(metadata, group.getKey(), group.getValue());
+            }
+            listener.batchExecuted(table, MapperListener.Operation.INSERT, this.insertions.size());
+        } finally {
+            releaseConnection();
+        }
+    }
+
+    /**
+     * Inserts all the given elements along with the new objects they reference through foreign keys, following the
+     * references recursively. Check {@link InsertionMapper#insertGraph(Predicate)}.
+     * <p>
+     * Referenced objects are considered new when any of their primary keys has a default value and is null (for
+     * example, a serial id which has not been generated yet); otherwise they are expected to exist already.
+     */
+    public void insertGraph() throws Exception {
+        insertGraph(object -> getPK(object.getClass()).values().stream().anyMatch(field -> {
+            try {
+                return field.getAnnotation(MapperColumn.class).hasDefault() && field.get(object) == null;
+            } catch (IllegalAccessException e) {
+                return false;
+            }
+        }));
+    }
+
+    /**
+     * Inserts all the given elements along with the new objects they reference through foreign keys, following the
+     * references recursively (for example, a new post along with its new author and its new parent post).
+     * <p>
+     * The mapped classes are sorted topologically by their foreign key dependencies, so referenced objects are
+     * always inserted before the objects pointing to them, and all the objects of a class are inserted with
+     * {@link InsertionMapper#insert()}, which sends them in a single batch and writes back the generated keys.
+     * Objects referencing other new objects of their own class are inserted in as many batches as levels the chain
+     * has. Within a batch, objects keep the order in which they were reached from the given elements, so the keys
+     * are generated in the same order on every run.
+     * <p>
+     * Classes are ordered as a whole, so two classes whose objects reference each other cannot be inserted together
+     * even when the objects themselves do not form a cycle (for example, a new user pointing to a post which does
+     * not point back to it, along with another post pointing to the user).
+     *
+     * @param isNew decides whether a referenced object must be inserted; the given elements are always inserted
+     * @throws Exception when the references form a cycle, either between objects or between their classes, as such
+     *                   a graph cannot be inserted in order
+     */
+    public void insertGraph(Predicate<Object> isNew) throws Exception {
         try {
+            // Depth of each new object within the chain of new objects of its own class, compared by identity
+            IdentityHashMap<Object, Integer> levels = new IdentityHashMap<>();
+            IdentityHashMap<Object, Boolean> visiting = new IdentityHashMap<>();
+
+            // Classes each class depends on, and the new objects of each class, keeping the order in which they were
+            // discovered
+            LinkedHashMap<Class<?>, Set<Class<?>>> dependencies = new LinkedHashMap<>();
+            LinkedHashMap<Class<?>, List<Object>> discovered = new LinkedHashMap<>();
+
             for (E element : this.insertions) {
-                insertion = new HashMap<>();
-                for (Field field : this.mappedClass.getDeclaredFields()) {
-                    if (field.isAnnotationPresent(MapperColumn.class)) {
-                        field.setAccessible(true);
-                        fieldClass = field.getAnnotation(MapperColumn.class).targetClass();
-                        if (fieldClass == Object.class) { // Normal field
-                            columnName = extractColumnName(field);
-                            atrib = field.get(element);
-                            // Checks for default values
-                            if (field.getAnnotation(MapperColumn.class).hasDefault() && atrib == null) {
-                                insertion.put(columnName, new Mapper.DEFAULT());
-                            } else {
-                                insertion.put(columnName, atrib);
-                            }
-                        } else { // Foreign keys
-                            if (field.get(element) != null) {   // Asumes that a foreign key can't be null
-                                insertion.putAll(getFKs(element));
+                visitGraph(element, isNew, levels, visiting, dependencies, discovered);
+            }
+
+            for (Class<?> clase : sortByDependencies(dependencies)) {
+                // Objects of the class grouped by their level, from the ones which don't reference their own class
+                TreeMap<Integer, List<Object>> batches = new TreeMap<>();
+                for (Object object : discovered.get(clase)) {
+                    batches.computeIfAbsent(levels.get(object), k -> new ArrayList<>()).add(object);
+                }
+
+                for (List<Object> batch : batches.values()) {
+                    inherit(new InsertionMapper<>(connection(true))).defineClass(clase).addAll(batch.toArray())
+                            .insert();
+                }
+            }
+        } finally {
+            releaseConnection();
+        }
+    }
+
+    /**
+     * Walks the references of a new object, computing its level and the dependencies between classes. The object is
+     * added to the objects of its class after the objects it references.
+     *
+     * @return level of the object within the chain of new objects of its class
+     */
+    private int visitGraph(Object object, Predicate<Object> isNew, IdentityHashMap<Object, Integer> levels,
+                           IdentityHashMap<Object, Boolean> visiting,
+                           LinkedHashMap<Class<?>, Set<Class<?>>> dependencies,
+                           LinkedHashMap<Class<?>, List<Object>> discovered) throws Exception {
+        if (levels.containsKey(object)) {
+            return levels.get(object);
+        }
+        if (visiting.put(object, true) != null) {
+            throw new Exception("Cyclic reference found while inserting " + object.getClass().getName());
+        }
+
+        Set<Class<?>> classDependencies = dependencies.computeIfAbsent(object.getClass(), k -> new LinkedHashSet<>());
+        int level = 0;
+
+        try {
+            for (Field field : object.getClass().getDeclaredFields()) {
+                if (field.isAnnotationPresent(MapperColumn.class) &&
+                        field.getAnnotation(MapperColumn.class).targetClass() != Object.class) {
+                    field.setAccessible(true);
+                    Object reference = field.get(object);
+
+                    if (reference != null && !isAtomicClass(reference.getClass()) &&
+                            reference.getClass().isAnnotationPresent(MapperTable.class) && isNew.test(reference)) {
+                        int referenceLevel = visitGraph(reference, isNew, levels, visiting, dependencies,
+                                discovered);
+
+                        if (reference.getClass() == object.getClass()) {
+                            level = Math.max(level, referenceLevel + 1);
+                        } else {
+                            classDependencies.add(reference.getClass());
+                        }
+                    }
+                }
+            }
+        } catch (IllegalAccessException e) {
+            throw MapperException.of(e);
+        }
+
+        visiting.remove(object);
+        levels.put(object, level);
+        discovered.computeIfAbsent(object.getClass(), k -> new ArrayList<>()).add(object);
+        return level;
+    }
+
+    /**
+     * Sorts the classes so every class goes after the classes it depends on
+     *
+     * @param dependencies classes each class depends on
+     * @return the sorted classes
+     * @throws Exception when the classes depend on each other in a cycle
+     */
+    private static List<Class<?>> sortByDependencies(Map<Class<?>, Set<Class<?>>> dependencies) throws Exception {
+        List<Class<?>> sorted = new ArrayList<>();
+        HashMap<Class<?>, Integer> pending = new HashMap<>();
+        ArrayDeque<Class<?>> ready = new ArrayDeque<>();
+
+        dependencies.forEach((clase, dependsOn) -> {
+            pending.put(clase, dependsOn.size());
+            if (dependsOn.isEmpty()) {
+                ready.add(clase);
+            }
+        });
+
+        while (!ready.isEmpty()) {
+            Class<?> clase = ready.poll();
+            sorted.add(clase);
+
+            dependencies.forEach((dependant, dependsOn) -> {
+                if (dependsOn.contains(clase) && pending.merge(dependant, -1, Integer::sum) == 0) {
+                    ready.add(dependant);
+                }
+            });
+        }
+
+        if (sorted.size() < dependencies.size()) {
+            StringBuilder cycle = new StringBuilder();
+            pending.forEach((clase, count) -> {
+                if (count > 0) {
+                    cycle.append(" ").append(clase.getName());
+                }
+            });
+            throw new Exception("Cyclic foreign key dependency between:" + cycle);
+        }
+
+        return sorted;
+    }
+
+    /**
+     * Inserts a group of elements which write the same columns as a single JDBC batch, writing back into them the
+     * values generated by the database
+     *
+     * @param metadata metadata of the mapped class
+     * @param written  mask of the columns written by every element of the group
+     * @param rows     elements and their values, in the same order as the columns
+     */
+    private void insertGroup(EntityMetadata metadata, BitSet written, List<Row<E>> rows) throws Exception {
+        String table = metadata.getTable();
+        String insertionSql = SqlTemplates.insert(mappedClass, written);
+
+        // Columns left to the database, whose values must be requested back
+        List<String> generated = new ArrayList<>();
+        for (String column : metadata.getDefaultColumns()) {
+            if (!written.get(metadata.getColumns().indexOf(column))) {
+                generated.add(column);
+            }
+        }
+
+        try (PreparedStatement statement = prepare(insertionSql, MapperListener.Operation.INSERT, table,
+                generated.toArray(new String[0]))) {
+            for (Row<E> row : rows) {
+                int index = 1;
+                for (Object value : row.values) {
+                    statement.setObject(index++, value);
+                }
+                statement.addBatch();
+            }
+
+            long start = System.nanoTime();
+            int[] counts = statement.executeBatch();
+            long elapsed = System.nanoTime() - start;
+            long affected = Arrays.stream(counts).filter(count -> count > 0).asLongStream().sum();
+            listener.statementExecuted(table, MapperListener.Operation.INSERT, elapsed, affected);
+            trace(table, insertionSql, null, elapsed, affected);
+
+            // Generated values are returned in the same order as the batched rows
+            if (!generated.isEmpty()) {
+                try (ResultSet keys = statement.getGeneratedKeys()) {
+                    for (int i = 0; i < rows.size() && keys != null && keys.next(); i++) {
+                        for (int j = 0; j < generated.size(); j++) {
+                            Field field = metadata.getPlainFields().get(generated.get(j));
+                            Object value;
+
+                            // Some drivers change the case of the column labels, so the position is used instead
+                            try {
+                                value = keys.getObject(generated.get(j));
+                            } catch (SQLException e) {
+                                value = keys.getObject(j + 1);
                             }
+
+                            field.set(rows.get(i).element, convert(value, field.getType()));
                         }
                     }
                 }
-                this.customInsertion(insertion, mappedClass.getAnnotation(MapperTable.class).nombre());
             }
-        } catch (IllegalAccessException ex) {
-            throw new Exception(ex.getMessage());
+        } catch (SQLException | IllegalAccessException e) {
+            throw MapperException.of(e);
+        }
+    }
+
+    /**
+     * Element to be inserted along with the values of its columns
+     */
+    private static class Row<E> {
+        private final E element;
+        private final Collection<Object> values;
+
+        private Row(E element, Collection<Object> values) {
+            this.element = element;
+            this.values = values;
         }
     }
 
@@ -193,16 +517,82 @@ public class InsertionMapper<E> extends Mapper<E> {
      * "Column name that has a default value" : new Mapper.DEFAULT()
      * }
      * ]
+     * <p>
+     * Maps are grouped by their columns (and by which of them are
+     * {@link Mapper.DEFAULT DEFAULT}), regardless of their iteration order,
+     * and every group is sent as JDBC batches of up to
+     * {@value CUSTOM_BATCH_SIZE} rows through a single statement. Rows of
+     * different groups are not inserted in the order of the list.
      *
      * @param insertions Map list to be used as a guide to perform the
      *                   insertions
      */
     public void customInsertion(List<Map<String, Object>> insertions, String table) throws Exception {
-        for (Map<String, Object> insertion : insertions) {
-            customInsertion(insertion, table);
+        try {
+            // Values of each map indexed by the SQL template of its shape, keeping the order of the list
+            LinkedHashMap<String, List<Object[]>> groups = new LinkedHashMap<>();
+
+            for (Map<String, Object> insertion : insertions) {
+                // Canonical column order, so maps with the same columns share the same sentence
+                ArrayList<String> columns = new ArrayList<>(new TreeSet<>(insertion.keySet()));
+                ArrayList<Object> params = new ArrayList<>(columns.size());
+                BitSet defaults = new BitSet();
+
+                for (int i = 0; i < columns.size(); i++) {
+                    Object value = insertion.get(columns.get(i));
+                    if (value instanceof Mapper.DEFAULT) {
+                        defaults.set(i);
+                    } else {
+                        params.add(value);
+                    }
+                }
+
+                groups.computeIfAbsent(SqlTemplates.insert(table, columns, defaults), k -> new ArrayList<>())
+                        .add(params.toArray());
+            }
+
+            // Configures the connection to the database
+            configureConnection();
+
+            for (Map.Entry<String, List<Object[]>> group : groups.entrySet()) {
+                try (PreparedStatement statement = prepare(group.getKey(), MapperListener.Operation.INSERT, table)) {
+                    List<Object[]> rows = group.getValue();
+
+                    for (int from = 0; from < rows.size(); from += CUSTOM_BATCH_SIZE) {
+                        List<Object[]> batch = rows.subList(from, Math.min(from + CUSTOM_BATCH_SIZE, rows.size()));
+                        for (Object[] params : batch) {
+                            for (int i = 0; i < params.length; i++) {
+                                statement.setObject(i + 1, params[i]);
+                            }
+                            statement.addBatch();
+                        }
+
+                        // Every batch gets the time that remains
+                        applyLimits(statement);
+                        long start = System.nanoTime();
+                        int[] counts = statement.executeBatch();
+                        long elapsed = System.nanoTime() - start;
+                        long affected = Arrays.stream(counts).filter(count -> count > 0).asLongStream().sum();
+                        listener.statementExecuted(table, MapperListener.Operation.INSERT, elapsed, affected);
+                        listener.batchExecuted(table, MapperListener.Operation.INSERT, batch.size());
+                        trace(table, group.getKey(), batch.size() == 1 ? Arrays.asList(batch.get(0)) : null, elapsed,
+                                affected);
+                    }
+                } catch (SQLException sql) {
+                    throw MapperException.of(sql);
+                }
+            }
+        } finally {
+            releaseConnection();
         }
     }
 
+    /**
+     * Inserts the values indicated by a map. Check {@link InsertionMapper#customInsertion(List, String)}
+     *
+     * @param insertion Map to be used as a guide to perform the insertion
+     * @param table     table where the values are inserted
+     */
     public void customInsertion(Map<String, Object> insertion, String table) throws Exception {
         /*
          *
@@ -211,33 +601,122 @@ public class InsertionMapper<E> extends Mapper<E> {
          *
          * */
 
-        ArrayList<Object> params = new ArrayList<>();
-        StringBuilder insertionBuilder = new StringBuilder("INSERT INTO ");
-        StringBuilder valueBuilder = new StringBuilder("values (");
-        insertionBuilder.append(table).append(" (");
+        customInsertion(Collections.singletonList(insertion), table);
+    }
+
+    /**
+     * Inserts into a table the rows of a file written by
+     * {@link QueryMapper#export(WritableByteChannel, RowFormat)}. The rows are read as they are inserted, in JDBC
+     * batches of up to {@value CUSTOM_BATCH_SIZE} rows, so the file does not need to fit in memory.
+     * <p>
+     * The columns named by the file must be columns of the table, as reported by the database metadata, since they
+     * are written into the INSERT sentence; a file naming any other column is rejected before inserting any row. CSV
+     * values are converted according to the types of the columns.
+     *
+     * @param channel source of the rows; it is not closed
+     * @param format  format of the rows
+     * @param table   table where the rows are inserted
+     * @return number of inserted rows
+     */
+    public long importRows(ReadableByteChannel channel, RowFormat format, String table) throws Exception {
+        try {
+            DataInputStream input = RowFormat.input(channel);
+            long rows = 0;
+
+            // Configures the connection to the database
+            configureConnection();
+
+            try {
+                List<String> columns = format.readHeader(input);
+                int[] types = columnTypes(table, columns);
+                String insertSql = SqlTemplates.insert(table, columns, new BitSet());
+
+                try (PreparedStatement statement = prepare(insertSql, MapperListener.Operation.INSERT, table)) {
+                    Object[] values = format.readRow(input, columns.size());
+
+                    while (values != null) {
+                        int batchSize = 0;
+
+                        for (; values != null && batchSize < CUSTOM_BATCH_SIZE; batchSize++) {
+                            for (int i = 0; i < values.length; i++) {
+                                statement.setObject(i + 1, format != RowFormat.CSV ? values[i] :
+                                        RowFormat.parse((String) values[i], types[i]));
+                            }
+                            statement.addBatch();
+                            values = format.readRow(input, columns.size());
+                        }
 
-        insertion.forEach((s, o) -> {
-            if (o instanceof Mapper.DEFAULT) {
-                insertionBuilder.append(s).append(",");
-                valueBuilder.append("default,");
-            } else {
-                insertionBuilder.append(s).append(",");
-                valueBuilder.append("?,");
-                params.add(o);
+                        // Every batch gets the time that remains
+                        applyLimits(statement);
+                        long start = System.nanoTime();
+                        int[] counts = statement.executeBatch();
+                        long elapsed = System.nanoTime() - start;
+                        long affected = Arrays.stream(counts).filter(count -> count > 0).asLongStream().sum();
+                        listener.statementExecuted(table, MapperListener.Operation.INSERT, elapsed, affected);
+                        listener.batchExecuted(table, MapperListener.Operation.INSERT, batchSize);
+                        trace(table, insertSql, null, elapsed, affected);
+                        rows += batchSize;
+                    }
+                }
+            } catch (SQLException | IOException | IllegalArgumentException e) {
+                throw MapperException.of(e);
             }
 
-        });
-        insertionBuilder.delete(insertionBuilder.length() - 1, insertionBuilder.length()).append(") ");
-        valueBuilder.delete(valueBuilder.length() - 1, valueBuilder.length()).append(")");
+            return rows;
+        } finally {
+            releaseConnection();
+        }
+    }
 
-        try {
-            PreparedStatement statement = connection.prepareStatement(insertionBuilder.toString() + valueBuilder.toString());
-            for (int i = 0; i < params.size(); i++) {
-                statement.setObject(i + 1, params.get(i));
+    /**
+     * Inserts into a table the rows of a file. Check
+     * {@link InsertionMapper#importRows(ReadableByteChannel, RowFormat, String)}
+     *
+     * @param path   file to be read
+     * @param format format of the rows
+     * @param table  table where the rows are inserted
+     * @return number of inserted rows
+     */
+    public long importRows(Path path, RowFormat format, String table) throws Exception {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            return importRows(channel, format, table);
+        } catch (IOException e) {
+            throw MapperException.of(e);
+        }
+    }
+
+    /**
+     * Obtains the types of some columns of a table from the database metadata. Identifiers are looked up as given,
+     * and then in lower and upper case, as databases store unquoted identifiers in different ways.
+     *
+     * @param table   table name
+     * @param columns column names
+     * @return the type of each column, from {@link java.sql.Types}
+     * @throws SQLException when some of the columns is not a column of the table
+     */
+    private int[] columnTypes(String table, List<String> columns) throws SQLException {
+        HashMap<String, Integer> found = new HashMap<>();
+
+        for (String name : new LinkedHashSet<>(Arrays.asList(table, table.toLowerCase(), table.toUpperCase()))) {
+            try (ResultSet set = connection(true).getMetaData().getColumns(null, null, name, null)) {
+                while (set.next()) {
+                    found.put(set.getString("COLUMN_NAME").toLowerCase(), set.getInt("DATA_TYPE"));
+                }
+            }
+            if (!found.isEmpty()) {
+                break;
             }
-            statement.execute();
-        } catch (SQLException sql) {
-            throw new Exception(sql.getMessage());
         }
+
+        int[] types = new int[columns.size()];
+        for (int i = 0; i < types.length; i++) {
+            Integer type = found.get(columns.get(i).toLowerCase());
+            if (type == null) {
+                throw new SQLException("Column " + columns.get(i) + " is not a column of table " + table);
+            }
+            types[i] = type;
+        }
+
+        return types;
     }
 }
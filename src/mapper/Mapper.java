@@ -1,9 +1,19 @@
 package mapper;
 
 import java.lang.reflect.Field;
+import java.math.BigDecimal;
+import java.math.BigInteger;
 import java.sql.*;
 import java.util.Date;
 import java.util.*;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 /**
@@ -22,6 +32,20 @@ public abstract class Mapper<T> {
 
     protected Connection connection;
 
+    // Router providing the connection of each operation; null when the mapper works over a fixed connection
+    private ConnectionRouter router;
+
+    // True when the operations of the mapper write, so their connections come from the primary database
+    private boolean writes;
+    private boolean holdsPrimary;
+
+    // Isolation level the borrowed connection had before the mapper changed it; -1 when it was not changed
+    private int borrowedIsolation = -1;
+
+    // Sharded mapper which created this one; foreign keys are looked up in the shards owning them. Null when the
+    // data is not sharded
+    ShardedMapper<?> shards;
+
     // Desired isolation level for the transaction that will be executed (initializes to default isolation level in
     // PostgreSQL)
     private int isolationLevel = Connection.TRANSACTION_READ_COMMITTED;
@@ -32,24 +56,148 @@ public abstract class Mapper<T> {
     protected Class<? extends T> mappedClass;
     protected static Pattern regexFKeys = Pattern.compile("(\\w+):(\\w+)");
 
+    // Listener used by the mappers which don't define their own one
+    private static volatile MapperListener defaultListener = MapperListener.NONE;
+
+    // Listener notified about every interaction with the database
+    protected MapperListener listener;
+
+    // Tracer used by the mappers which don't define their own one
+    private static volatile SqlTracer defaultTracer = null;
+
+    // Tracer of the executed statements; null when tracing is disabled
+    protected SqlTracer tracer;
+
+    // SQL variant of the database; detected from the connection when it is not defined
+    protected SqlDialect dialect;
+
+    // SQL code and parameters of the statement created by the user
+    protected String sql;
+    protected List<?> parameters;
+
+    // Instant, as given by System.nanoTime, by which the operations of the mapper must have finished; only valid
+    // when hasDeadline is set. Mappers created to resolve foreign keys share it
+    private long deadline;
+    private boolean hasDeadline = false;
+
+    // Cancellation of the current operation, shared with the mappers created to resolve foreign keys
+    private Cancellation cancellation = new Cancellation();
+
+    // Number of rows read between two checks of the deadline, the cancellation and the interruption of the thread
+    protected static final int LIMITS_CHECK_INTERVAL = 256;
+
+    // Foreign key lookups running at the moment, indexed by database, class and primary key values
+    private static final SingleFlight<List<Object>, Object> FOREIGN_KEY_FLIGHTS = new SingleFlight<>();
+    private static volatile boolean coalesceForeignKeys = false;
+
+    // Database of the fixed connection of the mapper, identified once per connection, and auto-commit mode of the
+    // connection, checked once per operation; null until a coalesced lookup needs them
+    private Connection identifiedConnection;
+    private Object connectionDatabase;
+    private Boolean autoCommit;
+
     public Mapper(Connection connection) {
         this.connection = connection;
+        this.listener = defaultListener;
+        this.tracer = defaultTracer;
         this.atomicClasses = new HashSet<>();
 
         // Definition of the atomic classes
         this.atomicClasses.add(String.class);
         this.atomicClasses.add(Integer.class);
+        this.atomicClasses.add(Long.class);
+        this.atomicClasses.add(Short.class);
+        this.atomicClasses.add(Byte.class);
+        this.atomicClasses.add(Boolean.class);
+        this.atomicClasses.add(BigDecimal.class);
+        this.atomicClasses.add(BigInteger.class);
         this.atomicClasses.add(Double.class);
         this.atomicClasses.add(Float.class);
         this.atomicClasses.add(Timestamp.class);
         this.atomicClasses.add(Date.class);
+        this.atomicClasses.add(java.sql.Date.class);
+        this.atomicClasses.add(Time.class);
         this.atomicClasses.add(Character.class);
     }
 
+    /**
+     * Creates a mapper whose connections are provided by a router. A connection is borrowed when the mapper prepares
+     * its statement, and given back once the operation has been executed.
+     *
+     * @param router router providing the connections
+     * @param writes true when the operations of the mapper write, so they are sent to the primary database
+     */
+    protected Mapper(ConnectionRouter router, boolean writes) {
+        this((Connection) null);
+        this.router = router;
+        this.writes = writes;
+    }
+
     public Connection getConnection() {
         return connection;
     }
 
+    public ConnectionRouter getRouter() {
+        return router;
+    }
+
+    /**
+     * Obtains the connection of the current operation, borrowing it from the router when needed
+     *
+     * @param write true when the operation writes; ignored when the mapper works over a fixed connection
+     * @return the connection
+     */
+    protected Connection connection(boolean write) throws SQLException {
+        if (router != null) {
+            write |= writes;
+
+            // A read connection cannot be used to write, so it is exchanged for one to the primary
+            if (connection != null && write && !holdsPrimary) {
+                releaseConnection();
+            }
+            if (connection == null) {
+                connection = router.acquire(write);
+                holdsPrimary = write;
+            }
+        }
+
+        return connection;
+    }
+
+    /**
+     * Gives the connection back to the router once an operation has finished, and forgets the statements registered
+     * by the mapper for its cancellation. Does not give back the connection when the mapper works over a fixed one.
+     */
+    protected void releaseConnection() {
+        // The statements of the mapper have finished, so they can no longer be cancelled
+        cancellation.unregister(this);
+        returnConnection();
+    }
+
+    /**
+     * Gives the borrowed connection back to the router, restoring the isolation level it had
+     */
+    private void returnConnection() {
+        if (router != null && connection != null) {
+            try {
+                // The connection of a unit of work restores its level when the unit is closed
+                if (borrowedIsolation >= 0 && !router.inUnitOfWork()) {
+                    connection.setTransactionIsolation(borrowedIsolation);
+                }
+            } catch (SQLException ignored) {
+                // The connection is given back anyway
+            }
+            borrowedIsolation = -1;
+
+            try {
+                router.release(connection);
+            } catch (SQLException ignored) {
+                // The connection is discarded anyway
+            }
+            connection = null;
+        }
+    }
+
     public int getIsolationLevel() {
         return isolationLevel;
     }
@@ -63,9 +211,10 @@ public abstract class Mapper<T> {
     public Mapper<T> setIsolationLevel(int isolationLevel) throws Exception {
 
         // We need to check that the given database supports the desired isolation level; if it doesn't support it,
-        // the default value remains
+        // the default value remains. A connection borrowed only for the check is given back right away
+        boolean borrowed = connection == null;
         try {
-            DatabaseMetaData metaData = this.connection.getMetaData();
+            DatabaseMetaData metaData = connection(false).getMetaData();
 
             if (metaData.supportsTransactionIsolationLevel(isolationLevel)) {
                 this.isolationLevel = isolationLevel;
@@ -73,16 +222,325 @@ public abstract class Mapper<T> {
 
         } catch (SQLException e) {
 
-            throw new Exception(e.getMessage());
+            throw MapperException.of(e);
+        } finally {
+            if (borrowed) {
+                returnConnection();
+            }
+        }
+
+        return this;
+    }
+
+    public MapperListener getListener() {
+        return listener;
+    }
+
+    /**
+     * Defines the listener to be notified about the operations performed by this mapper, and by the mappers it
+     * creates to resolve foreign keys
+     *
+     * @param listener listener to be used; null disables the notifications
+     * @return mapper which is being built
+     */
+    public Mapper<T> setListener(MapperListener listener) {
+        this.listener = listener == null ? MapperListener.NONE : listener;
+        return this;
+    }
+
+    public static MapperListener getDefaultListener() {
+        return defaultListener;
+    }
+
+    /**
+     * Defines the listener used by all the mappers created from now on
+     *
+     * @param listener listener to be used; null disables the notifications
+     */
+    public static void setDefaultListener(MapperListener listener) {
+        defaultListener = listener == null ? MapperListener.NONE : listener;
+    }
+
+    /**
+     * Enables or disables, for every mapper, the coalescing of concurrent identical foreign key lookups: when several
+     * threads look up the same referenced object of the same database at the same time, only the first one runs the
+     * query, and the rest wait for it and get the same instance. Lookups inside a transaction (a unit of work, or a
+     * connection without auto-commit) always run their own query, as they must see the writes of the transaction.
+     * <p>
+     * Disabled by default: the threads which join a lookup share the referenced instance, so it should only be
+     * enabled when the referenced objects are not modified once read.
+     *
+     * @param coalesce true to share concurrent identical lookups; false to make every lookup run its own query
+     */
+    public static void setForeignKeyCoalescing(boolean coalesce) {
+        coalesceForeignKeys = coalesce;
+    }
+
+    public SqlTracer getTracer() {
+        return tracer;
+    }
+
+    /**
+     * Defines the tracer that logs the statements executed by this mapper, and by the mappers it creates to resolve
+     * foreign keys
+     *
+     * @param tracer tracer to be used; null disables the tracing
+     * @return mapper which is being built
+     */
+    public Mapper<T> setTracer(SqlTracer tracer) {
+        this.tracer = tracer;
+        return this;
+    }
+
+    public static SqlTracer getDefaultTracer() {
+        return defaultTracer;
+    }
+
+    /**
+     * Defines the tracer used by all the mappers created from now on
+     *
+     * @param tracer tracer to be used; null disables the tracing
+     */
+    public static void setDefaultTracer(SqlTracer tracer) {
+        defaultTracer = tracer;
+    }
+
+    /**
+     * @return the SQL dialect of the database, detecting it from the connection when it was not defined
+     */
+    public SqlDialect getDialect() throws Exception {
+        if (dialect == null) {
+            // When no operation holds a connection, the one borrowed to detect the dialect is given back right away
+            boolean borrowed = connection == null;
+            try {
+                dialect = SqlDialect.of(connection(false));
+            } catch (SQLException e) {
+                throw MapperException.of(e);
+            } finally {
+                if (borrowed) {
+                    returnConnection();
+                }
+            }
         }
 
+        return dialect;
+    }
+
+    /**
+     * Defines the SQL dialect used to generate the sentences that are not portable between databases
+     *
+     * @param dialect dialect to be used; null to detect it from the connection
+     * @return mapper which is being built
+     */
+    public Mapper<T> setDialect(SqlDialect dialect) {
+        this.dialect = dialect;
+        return this;
+    }
+
+    /**
+     * Limits the time the operations of the mapper can take, counted from now. Every statement executed afterwards,
+     * including the ones that resolve foreign keys, gets the remaining time as its query timeout, and an operation
+     * still running when the time runs out fails with a {@link SQLTimeoutException SQLTimeoutException}.
+     *
+     * @param timeout maximum time; 0 or less removes the limit
+     * @param unit    unit of the timeout
+     * @return mapper which is being built
+     */
+    public Mapper<T> setTimeout(long timeout, TimeUnit unit) {
+        this.hasDeadline = timeout > 0;
+        this.deadline = System.nanoTime() + unit.toNanos(timeout);
         return this;
     }
 
+    /**
+     * @return nanoseconds left before the deadline of the mapper; Long.MAX_VALUE when there is no deadline
+     */
+    public long getRemainingNanos() {
+        return hasDeadline ? deadline - System.nanoTime() : Long.MAX_VALUE;
+    }
+
+    /**
+     * Cancels the operation being executed by the mapper, which may be called from another thread: its running
+     * statements, including the ones resolving foreign keys, are cancelled through {@link Statement#cancel()}, its
+     * waits for the foreign key lookups of other threads are stopped, and the operation fails instead of executing
+     * more statements. Once the operation has finished, the mapper can be
+     * used again; when no operation is running, the next one is the one cancelled.
+     * <p>
+     * Interrupting the thread running the operation cancels its statements too.
+     */
+    public void cancel() {
+        cancellation.cancel();
+    }
+
+    /**
+     * Checks that the current operation can go on
+     *
+     * @throws SQLTimeoutException when the deadline has passed
+     * @throws SQLException        when the operation was cancelled or the thread was interrupted
+     */
+    protected void checkLimits() throws SQLException {
+        if (cancellation.cancelled) {
+            throw new SQLException("The operation was cancelled", "57014");
+        }
+        if (Thread.currentThread().isInterrupted()) {
+            cancellation.cancel();
+            throw new SQLException("The thread was interrupted", "57014");
+        }
+        if (hasDeadline && deadline - System.nanoTime() <= 0) {
+            throw new SQLTimeoutException("The deadline of the operation has passed", "57014");
+        }
+    }
+
+    /**
+     * Applies the remaining time to a statement about to be executed, and registers it as one of the statements to be
+     * cancelled by {@link Mapper#cancel()} until the mapper releases its connection
+     *
+     * @param prepared statement to be executed
+     */
+    protected void applyLimits(Statement prepared) throws SQLException {
+        try {
+            checkLimits();
+            if (hasDeadline) {
+                // Query timeouts are given in whole seconds, so they are rounded up
+                long nanos = deadline - System.nanoTime();
+                prepared.setQueryTimeout((int) Math.min(Integer.MAX_VALUE, Math.max(1,
+                        (nanos + TimeUnit.SECONDS.toNanos(1) - 1) / TimeUnit.SECONDS.toNanos(1))));
+            }
+        } catch (SQLException e) {
+            // The operation ends here, so its statements are forgotten and its connection is released
+            prepared.close();
+            releaseConnection();
+            throw e;
+        }
+
+        cancellation.register(this, prepared);
+    }
+
+    /**
+     * Cancellation shared by a mapper and the mappers it creates. It holds the statements of the operation which
+     * have not finished yet, each one with the mapper that registered it, so a nested mapper finishing its lookup
+     * leaves the statements of the outer mappers registered.
+     */
+    private static final class Cancellation {
+
+        // Cancellations with registered statements, whose threads are checked for interruptions by the watchdog
+        private static final Set<Cancellation> WATCHED = ConcurrentHashMap.newKeySet();
+        private static final ScheduledExecutorService WATCHDOG = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "mapper-interrupts");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        static {
+            WATCHDOG.scheduleWithFixedDelay(Cancellation::checkInterruptions, 50, 50, TimeUnit.MILLISECONDS);
+        }
+
+        private volatile boolean cancelled = false;
+
+        // Statements which have not finished, indexed by the mapper that registered them, and the thread running them
+        private final IdentityHashMap<Statement, Mapper<?>> running = new IdentityHashMap<>();
+        private volatile Thread thread;
+
+        // Waits for the coalesced lookups of other threads, which hold no statement of this operation; they are
+        // completed by the cancellation
+        private final List<CompletableFuture<Void>> waits = new ArrayList<>();
+
+        private void register(Mapper<?> owner, Statement statement) {
+            synchronized (this) {
+                if (running.isEmpty()) {
+                    thread = Thread.currentThread();
+                    WATCHED.add(this);
+                }
+                running.put(statement, owner);
+            }
+
+            // A cancellation that arrived while registering the statement would have missed it
+            if (cancelled) {
+                cancel();
+            }
+        }
+
+        /**
+         * Forgets the statements of a mapper. Once no statement is left the operation has finished, so the
+         * cancellation is reset.
+         */
+        private synchronized void unregister(Mapper<?> owner) {
+            running.values().removeIf(mapper -> mapper == owner);
+
+            if (running.isEmpty()) {
+                WATCHED.remove(this);
+                thread = null;
+                cancelled = false;
+            }
+        }
+
+        /**
+         * Starts a wait which the cancellation can stop
+         *
+         * @return future completed when the operation gets cancelled; already completed when it was
+         */
+        private synchronized CompletableFuture<Void> startWait() {
+            CompletableFuture<Void> wait = new CompletableFuture<>();
+
+            if (cancelled) {
+                wait.complete(null);
+            } else {
+                waits.add(wait);
+            }
+
+            return wait;
+        }
+
+        private synchronized void endWait(CompletableFuture<Void> wait) {
+            waits.remove(wait);
+        }
+
+        private void cancel() {
+            cancelled = true;
+
+            List<Statement> statements;
+            List<CompletableFuture<Void>> stopped;
+            synchronized (this) {
+                statements = new ArrayList<>(running.keySet());
+                stopped = new ArrayList<>(waits);
+            }
+
+            stopped.forEach(wait -> wait.complete(null));
+
+            for (Statement statement : statements) {
+                try {
+                    statement.cancel();
+                } catch (SQLException ignored) {
+                    // The statement has already finished or been closed
+                }
+            }
+        }
+
+        /**
+         * Cancels the statements of the threads which were interrupted while blocked on the database, as JDBC calls
+         * do not react to interruptions
+         */
+        private static void checkInterruptions() {
+            for (Cancellation cancellation : WATCHED) {
+                Thread thread = cancellation.thread;
+                if (thread != null && thread.isInterrupted() && !cancellation.cancelled) {
+                    cancellation.cancel();
+                }
+            }
+        }
+    }
+
     public class DEFAULT {
     }
 
+    /**
+     * Makes the mapper work over a fixed connection, instead of the ones of its router
+     *
+     * @param connection database connection
+     */
     public void setConnection(Connection connection) {
+        releaseConnection();
+        this.router = null;
         this.connection = connection;
     }
 
@@ -112,9 +570,11 @@ public abstract class Mapper<T> {
      */
     public Mapper<T> createUpdate(String update) throws Exception {
         try {
-            statement = connection.prepareStatement(update);
+            statement = prepare(update, MapperListener.Operation.CUSTOM, "");
+            sql = update;
+            parameters = null;
         } catch (SQLException ex) {
-            throw new Exception(ex.getMessage());
+            throw MapperException.of(ex);
         }
         return this;
     }
@@ -125,11 +585,17 @@ public abstract class Mapper<T> {
     public void executeUpdate() throws Exception {
         try {
             /* Mapeado */
+            long start = System.nanoTime();
             statement.execute();
+            long elapsed = System.nanoTime() - start;
+            listener.statementExecuted("", MapperListener.Operation.CUSTOM, elapsed, statement.getUpdateCount());
+            trace("", sql, parameters, elapsed, statement.getUpdateCount());
             statement.close();
             /* Excepciones */
         } catch (SQLException e) {
-            throw new Exception(e.getMessage());
+            throw MapperException.of(e);
+        } finally {
+            releaseConnection();
         }
     }
 
@@ -151,6 +617,181 @@ public abstract class Mapper<T> {
         return nameColumn;
     }
 
+    /**
+     * Function to obtain the columns mapped by the fields of a class, to be used in a SELECT clause instead of *
+     *
+     * @param clase  mapped class
+     * @param fields Java names of the fields whose columns are needed; when there are none, every mapped field is
+     *               used
+     * @return the column names separated by commas
+     */
+    public static String selectColumns(Class<?> clase, String... fields) {
+        List<String> selected = Arrays.asList(fields);
+        LinkedHashSet<String> columns = new LinkedHashSet<>();
+
+        for (Field field : clase.getDeclaredFields()) {
+            if (field.isAnnotationPresent(MapperColumn.class) &&
+                    (selected.isEmpty() || selected.contains(field.getName()))) {
+                String fKeys = field.getAnnotation(MapperColumn.class).fKeys();
+
+                if (fKeys.equals("")) {
+                    columns.add(extractColumnName(field));
+                } else {
+                    // Foreign keys declared with fKeys are stored in the local columns of each pair
+                    Matcher matcher = regexFKeys.matcher(fKeys);
+                    while (matcher.find()) {
+                        columns.add(matcher.group(1));
+                    }
+                }
+            }
+        }
+
+        return columns.isEmpty() ? "*" : String.join(", ", columns);
+    }
+
+    /**
+     * Function to extract the table name of a mapped class
+     *
+     * @param clase class annotated with {@link MapperTable MapperTable}
+     * @return the table name; an empty String when the class is not annotated
+     */
+    public static String tableName(Class<?> clase) {
+        if (clase == null || !clase.isAnnotationPresent(MapperTable.class)) {
+            return "";
+        }
+
+        String nombre = clase.getAnnotation(MapperTable.class).nombre();
+        return nombre.equals("") ? clase.getName() : nombre;
+    }
+
+    /**
+     * Prepares a statement over the current connection, notifying the listener about it. The statement gets the
+     * remaining time of the mapper as its query timeout.
+     *
+     * @param sql       SQL code of the statement
+     * @param operation operation that requires the statement
+     * @param table     table affected by the statement
+     * @return the prepared statement
+     */
+    protected PreparedStatement prepare(String sql, MapperListener.Operation operation, String table)
+            throws SQLException {
+        long start = System.nanoTime();
+        PreparedStatement prepared = connection(writes(operation)).prepareStatement(sql);
+        listener.statementPrepared(table, operation, System.nanoTime() - start);
+        applyLimits(prepared);
+        return prepared;
+    }
+
+    /**
+     * @return true when the operation writes to the database
+     */
+    private static boolean writes(MapperListener.Operation operation) {
+        return operation != MapperListener.Operation.QUERY && operation != MapperListener.Operation.FOREIGN_KEY;
+    }
+
+    /**
+     * Prepares a statement which returns the values generated by the database for the given columns, notifying the
+     * listener about it
+     *
+     * @param sql              SQL code of the statement
+     * @param operation        operation that requires the statement
+     * @param table            table affected by the statement
+     * @param generatedColumns columns whose generated values will be obtained through
+     *                         {@link PreparedStatement#getGeneratedKeys()}; when empty no values are requested
+     * @return the prepared statement
+     */
+    protected PreparedStatement prepare(String sql, MapperListener.Operation operation, String table,
+                                        String[] generatedColumns) throws SQLException {
+        if (generatedColumns.length == 0) {
+            return prepare(sql, operation, table);
+        }
+
+        long start = System.nanoTime();
+        PreparedStatement prepared = connection(writes(operation)).prepareStatement(sql, generatedColumns);
+        listener.statementPrepared(table, operation, System.nanoTime() - start);
+        applyLimits(prepared);
+        return prepared;
+    }
+
+    /**
+     * Converts a value obtained from the database into the type of the field where it will be stored. JDBC drivers
+     * may return, for example, a Long for a column mapped into an Integer field.
+     *
+     * @param value value obtained from the database
+     * @param type  type of the destination field
+     * @return the converted value; the same value when no conversion is known
+     */
+    protected static Object convert(Object value, Class<?> type) {
+        if (value == null || type.isInstance(value)) {
+            return value;
+        }
+
+        if (value instanceof Number) {
+            Number number = (Number) value;
+            if (type == Integer.class || type == int.class) {
+                return number.intValue();
+            } else if (type == Long.class || type == long.class) {
+                return number.longValue();
+            } else if (type == Double.class || type == double.class) {
+                return number.doubleValue();
+            } else if (type == Float.class || type == float.class) {
+                return number.floatValue();
+            } else if (type == Short.class || type == short.class) {
+                return number.shortValue();
+            } else if (type == String.class) {
+                return number.toString();
+            }
+        } else if (value instanceof java.util.Date) {
+            long time = ((java.util.Date) value).getTime();
+            if (type == Timestamp.class) {
+                return new Timestamp(time);
+            } else if (type == java.sql.Date.class) {
+                return new java.sql.Date(time);
+            } else if (type == Date.class) {
+                return new Date(time);
+            }
+        } else if (value instanceof String && (type == Character.class || type == char.class) &&
+                ((String) value).length() == 1) {
+            return ((String) value).charAt(0);
+        }
+
+        return value;
+    }
+
+    /**
+     * Sends an executed statement to the tracer, when there is one
+     *
+     * @param table      table affected by the statement
+     * @param sql        SQL code of the statement
+     * @param parameters parameters bound to the statement
+     * @param nanos      elapsed time
+     * @param rows       returned or affected rows; -1 when it is unknown
+     */
+    protected void trace(String table, String sql, List<?> parameters, long nanos, long rows) {
+        if (tracer != null) {
+            tracer.trace(table, sql, parameters, nanos, rows);
+        }
+    }
+
+    /**
+     * Configures a mapper created internally by this one (for example, when resolving foreign keys) so it shares
+     * this mapper's settings
+     *
+     * @param nested mapper to be configured
+     * @return the given mapper
+     */
+    protected <M extends Mapper<?>> M inherit(M nested) {
+        ((Mapper<?>) nested).isolationLevel = this.isolationLevel;
+        nested.listener = this.listener;
+        nested.tracer = this.tracer;
+        nested.dialect = this.dialect;
+        nested.shards = this.shards;
+        ((Mapper<?>) nested).deadline = this.deadline;
+        ((Mapper<?>) nested).hasDeadline = this.hasDeadline;
+        ((Mapper<?>) nested).cancellation = this.cancellation;
+        return nested;
+    }
+
     /**
      * Queries a foreign key and maps it automatically
      *
@@ -164,33 +805,27 @@ public abstract class Mapper<T> {
         if (!clase.isAnnotationPresent(MapperTable.class)) {
             return null;
         }
+        // A null foreign key does not reference any object
+        if (pkObject == null) {
+            return null;
+        }
 
         // TODO: Check if pkObject is an instance of the class and throw
         // exceptions
 
-        // Base query
-        StringBuilder queryBuilder = new StringBuilder("SELECT * FROM ");
-        // Query will end up looking somewhat like this
-        // SELECT * FROM [TABLE] WHERE [PRIMARY_KEY]=pkObject;
-        queryBuilder.append(clase.getAnnotation(MapperTable.class).nombre().equals("") ?
-                clase.getName() : clase.getAnnotation(MapperTable.class).nombre()).append(" WHERE ");
-        // .append(" ? WHERE "); ?¿¿?¿
+        long start = System.nanoTime();
 
-        // Finds the field which is anotaded as Primary Key
-        Field fkField = Arrays.stream(clase.getDeclaredFields())
-                .filter(field ->
-                        field.isAnnotationPresent(MapperColumn.class) && field.getAnnotation(MapperColumn.class).pkey())
-                .findAny().orElseThrow(RuntimeException::new);
-
-        queryBuilder.append(
-                fkField.getAnnotation(MapperColumn.class).columna().equals("") ?
-                        fkField.getName() : fkField.getAnnotation(MapperColumn.class).columna()
-        ).append("=?");  // ? used to insert it on the where clause
+        // Query will end up looking somewhat like this, compiled once per class
+        // SELECT [COLUMNS] FROM [TABLE] WHERE [PRIMARY_KEY]=pkObject;
+        String query = SqlTemplates.selectByPk(clase);
 
         // Returns the mapped instance with
-        return new QueryMapper<>(connection)
-                .createQuery(queryBuilder.toString()).defineClass(clase).defineParameters(pkObject)
-                .findFirst(false);
+        Map<String, Object> pkeys = shards == null ? null :
+                Collections.singletonMap(EntityMetadata.of(clase).getPkColumns().get(0), pkObject);
+        Object fk = coalesce(clase, Collections.singletonList(pkObject), pkeys, () -> foreignKeyMapper(pkeys)
+                .defineClass(clase).createQuery(query).defineParameters(pkObject).findFirst(false));
+        listener.foreignKeyResolved(tableName(clase), System.nanoTime() - start);
+        return fk;
     }
 
     /**
@@ -210,28 +845,145 @@ public abstract class Mapper<T> {
         if (pkeys.values().stream().anyMatch(Objects::isNull)) {
             return null;
         }
-        String tmpColumn;
-        QueryMapper<?> queryMapper = new QueryMapper<>(connection).defineClass(clase);
+        long start = System.nanoTime();
         ArrayList<Object> params = new ArrayList<>();
 
-        // Base query
-        StringBuilder queryBuilder = new StringBuilder("SELECT * FROM ");
-        queryBuilder.append(clase.getAnnotation(MapperTable.class).nombre().equals("") ?
-                clase.getName() : clase.getAnnotation(MapperTable.class).nombre()).append(" WHERE ");
+        // Primary keys in the same order as in the WHERE clause of the query, which is compiled once per class
+        for (String pkColumn : EntityMetadata.of(clase).getPkColumns()) {
+            params.add(pkeys.get(pkColumn));
+        }
+
+        Object fk = coalesce(clase, params, pkeys, () -> foreignKeyMapper(pkeys).defineClass(clase)
+                .createQuery(SqlTemplates.selectByPk(clase)).defineParameters(params.toArray()).findFirst(false));
+        listener.foreignKeyResolved(tableName(clase), System.nanoTime() - start);
+        return fk;
+    }
 
-        for (Field field : clase.getDeclaredFields()) {
-            if (field.isAnnotationPresent(MapperColumn.class) && field.getAnnotation(MapperColumn.class).pkey()) {
-                tmpColumn = field.getAnnotation(MapperColumn.class).columna().equals("") ?
-                        field.getName() : field.getAnnotation(MapperColumn.class).columna();
-                queryBuilder.append(tmpColumn).append("=? and ");  // ? used to insert it on the where clause
-                params.add(pkeys.get(tmpColumn));
+    /**
+     * Runs a foreign key lookup, joining the identical lookup of another thread when one is running over the same
+     * database. Check {@link Mapper#setForeignKeyCoalescing(boolean)}
+     *
+     * @param clase    class of the referenced object
+     * @param pkValues primary key values of the referenced object, in the order of the lookup query
+     * @param pkeys    atomic primary key values indexed by their column name; only needed when the data is sharded
+     * @param lookup   query of the referenced object
+     * @return the referenced object
+     */
+    private Object coalesce(Class<?> clase, List<Object> pkValues, Map<String, Object> pkeys,
+                            SingleFlight.Call<Object> lookup) throws Exception {
+        Object database = coalesceForeignKeys ? databaseOf(pkeys) : null;
+
+        if (database == null) {
+            return lookup.call();
+        }
+
+        List<Object> key = new ArrayList<>(pkValues.size() + 2);
+        key.add(database);
+        key.add(clase);
+        key.addAll(pkValues);
+
+        // The wait for the lookup of another thread holds no statement to be cancelled, so it is stopped on its own
+        CompletableFuture<Void> abort = cancellation.startWait();
+        try {
+            return FOREIGN_KEY_FLIGHTS.execute(key, lookup, getRemainingNanos(), abort);
+        } catch (CancellationException e) {
+            throw new SQLException("The operation was cancelled", "57014");
+        } catch (TimeoutException e) {
+            throw new SQLTimeoutException("The deadline of the operation has passed", "57014");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("The thread was interrupted", "57014");
+        } finally {
+            cancellation.endWait(abort);
+        }
+    }
+
+    /**
+     * Identifies the database which serves a foreign key lookup, so only lookups over the same database are
+     * coalesced
+     *
+     * @param pkeys atomic primary key values indexed by their column name; only needed when the data is sharded
+     * @return the router of the database, or the URL and user of the connection when the mapper works over a fixed
+     * one; null when the lookup runs inside a transaction, and must not be shared
+     */
+    private Object databaseOf(Map<String, Object> pkeys) throws SQLException {
+        ConnectionRouter source = shards != null && pkeys != null ? shards.routerOf(pkeys) : router;
+
+        if (source != null) {
+            return source.inUnitOfWork() ? null : source;
+        }
+        if (connection == null) {
+            return null;
+        }
+        if (autoCommit == null) {
+            autoCommit = connection.getAutoCommit();
+        }
+        if (!autoCommit) {
+            return null;
+        }
+
+        if (identifiedConnection != connection) {
+            DatabaseMetaData metaData = connection.getMetaData();
+            connectionDatabase = Arrays.asList(metaData.getURL(), metaData.getUserName());
+            identifiedConnection = connection;
+        }
+        return connectionDatabase;
+    }
+
+    /**
+     * Creates the mapper which looks up a foreign key: over the connection of this mapper, or over the shard owning
+     * the referenced object when the data is sharded
+     *
+     * @param pkeys atomic primary key values of the referenced object indexed by their column name; only needed
+     *              when the data is sharded
+     * @return the mapper
+     */
+    protected QueryMapper<Object> foreignKeyMapper(Map<String, Object> pkeys) throws SQLException {
+        if (shards != null && pkeys != null) {
+            return inherit(new QueryMapper<>(shards.routerOf(pkeys)));
+        }
+
+        return inherit(new QueryMapper<>(connection(false)));
+    }
+
+    /**
+     * Checks the affected rows of a batch of updates or deletions which compared the version of the rows: the ones
+     * that affected no row found a different version.
+     *
+     * @param counts  affected rows of each statement of the batch
+     * @param objects objects of the batch, in the same order
+     * @return objects whose rows were not affected
+     * @throws SQLException when the driver did not report the affected rows of some statement (SUCCESS_NO_INFO), as
+     *                      then the versions cannot be checked
+     */
+    protected List<Object> staleObjects(int[] counts, List<?> objects) throws SQLException {
+        List<Object> stale = new ArrayList<>();
+
+        for (int i = 0; i < counts.length; i++) {
+            if (counts[i] < 0) {
+                throw new SQLException("The driver did not report the rows affected by each statement of the batch, " +
+                        "so the versions of the rows cannot be checked");
+            }
+            if (counts[i] == 0) {
+                stale.add(objects.get(i));
             }
         }
-        // Crops the queryBuilder in order to get rid of the residual "and" added after each WHERE condition
-        queryBuilder.delete(queryBuilder.length() - 4, queryBuilder.length());
 
-        return queryMapper.createQuery(queryBuilder.toString()).defineParameters(params.toArray())
-                .findFirst(false);
+        return stale;
+    }
+
+    /**
+     * Increases the version of objects whose rows were updated, as the database did
+     *
+     * @param objects      updated objects
+     * @param versionField version field of the objects
+     */
+    protected void increaseVersions(List<?> objects, Field versionField) throws Exception {
+        for (Object object : objects) {
+            Object version = versionField.get(object);
+            versionField.set(object, convert(version == null ? 1L : ((Number) version).longValue() + 1,
+                    versionField.getType()));
+        }
     }
 
     /**
@@ -308,7 +1060,7 @@ public abstract class Mapper<T> {
                 }
             }
         } catch (IllegalAccessException e) {
-            throw new Exception(e.getMessage());
+            throw MapperException.of(e);
         }
 
         return containFK;
@@ -360,12 +1112,62 @@ public abstract class Mapper<T> {
                 }
             }
         } catch (IllegalAccessException e) {
-            throw new Exception(e.getMessage());
+            throw MapperException.of(e);
         }
 
         return pKeys;
     }
 
+    /**
+     * Function that returns the primary key values of an object indexed by the column of their field. Unlike
+     * {@link Mapper#getAtomicPK(Object)}, it relies on the mapping of the class instead of the type of the values:
+     * only the fields which are foreign keys get replaced by the primary key of the object they reference, and
+     * missing references are kept as null values.
+     *
+     * @param object object from which the primary keys are obtained
+     * @return the primary key values indexed by the name of their column
+     */
+    protected Map<String, Object> pkValues(Object object) throws Exception {
+        Map<Field, List<String>> foreignKeys = EntityMetadata.of(object.getClass()).getForeignKeyColumns();
+        HashMap<String, Object> values = new HashMap<>();
+
+        try {
+            for (Map.Entry<String, Field> pk : getPK(object.getClass()).entrySet()) {
+                pk.getValue().setAccessible(true);
+                Object value = pk.getValue().get(object);
+
+                // A referenced object is identified by its own primary key
+                if (value != null && foreignKeys.containsKey(pk.getValue())) {
+                    List<Object> referenced = keyOf(value);
+                    value = referenced.size() == 1 ? referenced.get(0) : referenced;
+                }
+                values.put(pk.getKey(), value);
+            }
+        } catch (IllegalAccessException e) {
+            throw MapperException.of(e);
+        }
+
+        return values;
+    }
+
+    /**
+     * Function that returns the primary key values of an object sorted by their column name. The returned list can
+     * be used as a key to index objects by their identity in the database.
+     *
+     * @param object object from which the primary keys are obtained
+     * @return the primary key values sorted by the name of their column
+     */
+    protected List<Object> keyOf(Object object) throws Exception {
+        Map<String, Object> pkValues = pkValues(object);
+        List<Object> key = new ArrayList<>(pkValues.size());
+
+        for (String column : new TreeSet<>(pkValues.keySet())) {
+            key.add(pkValues.get(column));
+        }
+
+        return key;
+    }
+
     /**
      * Function to know if a class type is atomic or not
      *
@@ -449,12 +1251,13 @@ public abstract class Mapper<T> {
      */
     public Mapper<T> defineParametersList(List<Object> parametros) throws Exception {
         int index = 1;
+        this.parameters = parametros;
         try {
             for (Object parametro : parametros) {
                 statement.setObject(index++, parametro);
             }
         } catch (SQLException ex) {
-            throw new Exception(ex.getMessage());
+            throw MapperException.of(ex);
         }
 
         return this;
@@ -462,16 +1265,31 @@ public abstract class Mapper<T> {
 
     /**
      * This method is intended to be executed before performing a transaction. It will set the connection's required
-     * attributes to the ones stored in the Mapper.
+     * attributes to the ones stored in the Mapper. Connections borrowed from a router get their previous isolation
+     * level back when they are released, so the level of the mapper does not leak to other borrowers.
      */
     protected void configureConnection() throws Exception {
+        // The auto-commit mode may have changed since the last operation
+        autoCommit = null;
 
         // Isolation level
         try {
-            this.connection.setTransactionIsolation(this.isolationLevel);
+            Connection current = connection(false);
+
+            if (router == null) {
+                current.setTransactionIsolation(this.isolationLevel);
+            } else {
+                int level = current.getTransactionIsolation();
+                if (level != this.isolationLevel) {
+                    current.setTransactionIsolation(this.isolationLevel);
+                    if (borrowedIsolation < 0) {
+                        borrowedIsolation = level;
+                    }
+                }
+            }
         } catch (SQLException e) {
 
-            throw new Exception(e.getMessage());
+            throw MapperException.of(e);
         }
     }
 }
@@ -0,0 +1,296 @@
+package mapper;
+
+import java.lang.reflect.Field;
+import java.math.BigDecimal;
+import java.sql.*;
+import java.util.*;
+import java.util.Date;
+import java.util.regex.Matcher;
+
+/**
+ * Startup checks and warm-up of the mapped classes, meant to be run once when the application starts, before it
+ * serves any request:
+ * <pre>
+ * new MapperBootstrap(connection, Arrays.asList(User.class, Post.class, Comment.class)).run();
+ * </pre>
+ * {@link MapperBootstrap#validate()} compares the annotations of every class with the tables of the database,
+ * reporting all the mistakes at once instead of failing on the first request that uses each class.
+ * {@link MapperBootstrap#warmUp()} resolves the metadata, binders and SQL templates of the classes and maps synthetic
+ * rows, so reflection and the JIT compiler are warm when traffic arrives. It also checks the SQL of the common
+ * statements against the database, but does not leave them prepared: they are closed right away, and the connections
+ * of a pool do not share statements anyway.
+ *
+ * @author luastan
+ * @author CardamaS99
+ * @author danimf99
+ * @author alvrogd
+ * @author OswaldOswin1
+ * @author Marcos-marpin
+ */
+public class MapperBootstrap {
+
+    private final Connection connection;
+    private final List<Class<?>> classes;
+
+    // Synthetic rows mapped per class by the warm-up
+    private int warmUpIterations = 10000;
+
+    /**
+     * @param connection database connection, used to read the metadata of the tables and to check the statements
+     * @param classes    classes annotated with {@link MapperTable MapperTable}
+     */
+    public MapperBootstrap(Connection connection, Collection<Class<?>> classes) {
+        this.connection = connection;
+        this.classes = new ArrayList<>(classes);
+    }
+
+    /**
+     * @param iterations synthetic rows mapped per class by the warm-up; 0 disables the synthetic mapping
+     * @return bootstrap which is being built
+     */
+    public MapperBootstrap setWarmUpIterations(int iterations) {
+        this.warmUpIterations = iterations;
+        return this;
+    }
+
+    /**
+     * Validates the classes and warms them up
+     *
+     * @throws Exception listing every mistake found in the classes, one per line; nothing is warmed up then
+     */
+    public void run() throws Exception {
+        List<String> errors = validate();
+
+        if (!errors.isEmpty()) {
+            throw new Exception("Invalid mapped classes:\n" + String.join("\n", errors));
+        }
+
+        warmUp();
+    }
+
+    /**
+     * Checks the annotations of every class against the metadata of the database: the table and the mapped columns
+     * must exist, the primary key columns must match the ones of the table, and foreign keys must reference the
+     * primary key columns of mapped classes.
+     *
+     * @return the mistakes found, in class order; empty when there are none
+     */
+    public List<String> validate() throws Exception {
+        List<String> errors = new ArrayList<>();
+
+        try {
+            DatabaseMetaData metaData = connection.getMetaData();
+
+            for (Class<?> clase : classes) {
+                validate(clase, metaData, errors);
+            }
+        } catch (SQLException e) {
+            throw MapperException.of(e);
+        }
+
+        return errors;
+    }
+
+    /**
+     * Resolves the metadata, binders and SQL templates of every class, checks the SQL of its statements and maps
+     * synthetic rows through its binder.
+     * <p>
+     * Each statement is prepared over the bootstrap connection and closed at once. Drivers which parse the SQL on
+     * preparation report its mistakes here; others, such as PostgreSQL, defer it until the statement is executed,
+     * and then nothing is checked. No statement is kept prepared for later operations.
+     */
+    public void warmUp() throws Exception {
+        for (Class<?> clase : classes) {
+            EntityMetadata metadata = EntityMetadata.of(clase);
+            RowBinder<?> binder = RowBinder.of(clase, metadata.getColumns());
+
+            // The insertion writes every column, and the update every column but the primary keys and the version
+            BitSet all = metadata.mask(metadata.getColumns());
+            BitSet updated = (BitSet) all.clone();
+            updated.andNot(metadata.mask(metadata.getPkColumns()));
+            if (metadata.getVersionColumn() != null) {
+                updated.clear(metadata.getColumns().indexOf(metadata.getVersionColumn()));
+            }
+
+            List<String> statements = new ArrayList<>();
+            statements.add(SqlTemplates.insert(clase, all));
+            if (!metadata.getPkColumns().isEmpty()) {
+                statements.add(SqlTemplates.selectByPk(clase));
+                statements.add(SqlTemplates.delete(clase));
+                if (!updated.isEmpty()) {
+                    statements.add(SqlTemplates.update(clase, updated));
+                }
+            }
+
+            // Only validates the SQL, on the drivers which parse it when preparing the statement
+            try {
+                for (String sql : statements) {
+                    connection.prepareStatement(sql).close();
+                }
+            } catch (SQLException e) {
+                throw MapperException.of(e);
+            }
+
+            Object[] values = sampleRow(metadata);
+            for (int i = 0; i < warmUpIterations; i++) {
+                Object[] slots = binder.bind(values);
+
+                // Foreign keys are left unloaded, as queries do when they are not requested
+                for (int slot = 0; slot < slots.length; slot++) {
+                    if (binder.getForeignClass(slot) != null) {
+                        slots[slot] = RowBinder.ABSENT;
+                    }
+                }
+                binder.materialize(slots);
+            }
+        }
+    }
+
+    /**
+     * Checks a class, adding the mistakes found to the list
+     */
+    private void validate(Class<?> clase, DatabaseMetaData metaData, List<String> errors) throws SQLException {
+        String name = clase.getName();
+
+        if (!clase.isAnnotationPresent(MapperTable.class)) {
+            errors.add(name + ": missing @MapperTable annotation");
+            return;
+        }
+
+        EntityMetadata metadata = EntityMetadata.of(clase);
+        String table = metadata.getTable();
+
+        try {
+            RowBinder.of(clase, metadata.getColumns());
+        } catch (Exception e) {
+            errors.add(name + ": " + e.getMessage());
+        }
+
+        // Foreign keys
+        for (Map.Entry<Field, List<String>> foreignKey : metadata.getForeignKeyColumns().entrySet()) {
+            Field field = foreignKey.getKey();
+            MapperColumn annotation = field.getAnnotation(MapperColumn.class);
+            Class<?> target = annotation.targetClass();
+
+            if (!target.isAnnotationPresent(MapperTable.class)) {
+                errors.add(name + "." + field.getName() + ": target class " + target.getName() +
+                        " is not annotated with @MapperTable");
+                continue;
+            }
+
+            List<String> targetPks = EntityMetadata.of(target).getPkColumns();
+            if (annotation.fKeys().equals("")) {
+                if (targetPks.size() != 1) {
+                    errors.add(name + "." + field.getName() + ": " + target.getName() + " has " + targetPks.size() +
+                            " primary keys, so the foreign key must be declared with fKeys");
+                }
+            } else {
+                Set<String> referenced = new HashSet<>();
+                Matcher matcher = Mapper.regexFKeys.matcher(annotation.fKeys());
+                while (matcher.find()) {
+                    referenced.add(matcher.group(2));
+                }
+                if (!referenced.equals(new HashSet<>(targetPks))) {
+                    errors.add(name + "." + field.getName() + ": fKeys \"" + annotation.fKeys() +
+                            "\" does not reference the primary keys " + targetPks + " of " + target.getName());
+                }
+            }
+        }
+
+        // Table and columns
+        Set<String> columns = new HashSet<>();
+        String[] parts = table.split("\\.", 2);
+        String schema = parts.length > 1 ? parts[0] : null;
+        String tableName = parts[parts.length - 1];
+        String storedName = null;
+
+        // Depending on the database, unquoted names are stored in lower or upper case
+        for (String candidate : new LinkedHashSet<>(Arrays.asList(tableName, tableName.toLowerCase(),
+                tableName.toUpperCase()))) {
+            try (ResultSet set = metaData.getColumns(null, schema, candidate, null)) {
+                while (set.next()) {
+                    columns.add(set.getString("COLUMN_NAME").toLowerCase());
+                }
+            }
+            if (!columns.isEmpty()) {
+                storedName = candidate;
+                break;
+            }
+        }
+
+        if (storedName == null) {
+            errors.add(name + ": table " + table + " does not exist");
+            return;
+        }
+
+        for (String column : metadata.getColumns()) {
+            if (!columns.contains(column.toLowerCase())) {
+                errors.add(name + ": column " + column + " does not exist in table " + table);
+            }
+        }
+
+        // Primary keys; views report none, so they are not checked
+        Set<String> pks = new HashSet<>();
+        try (ResultSet set = metaData.getPrimaryKeys(null, schema, storedName)) {
+            while (set.next()) {
+                pks.add(set.getString("COLUMN_NAME").toLowerCase());
+            }
+        }
+
+        Set<String> declaredPks = new HashSet<>();
+        for (String column : metadata.getPkColumns()) {
+            declaredPks.add(column.toLowerCase());
+        }
+
+        if (!pks.isEmpty() && !pks.equals(declaredPks)) {
+            errors.add(name + ": primary keys " + metadata.getPkColumns() + " do not match the primary keys " + pks +
+                    " of table " + table);
+        }
+    }
+
+    /**
+     * Builds a row with a value of the right type for every plain field of a class; foreign key columns are null
+     */
+    private static Object[] sampleRow(EntityMetadata metadata) {
+        List<String> columns = metadata.getColumns();
+        Object[] values = new Object[columns.size()];
+
+        for (int i = 0; i < values.length; i++) {
+            Field field = metadata.getPlainFields().get(columns.get(i));
+            values[i] = field == null ? null : sampleValue(field.getType());
+        }
+
+        return values;
+    }
+
+    private static Object sampleValue(Class<?> type) {
+        if (type == String.class) {
+            return "warm-up";
+        } else if (type == Integer.class || type == int.class) {
+            return 1;
+        } else if (type == Long.class || type == long.class) {
+            return 1L;
+        } else if (type == Double.class || type == double.class) {
+            return 1.0;
+        } else if (type == Float.class || type == float.class) {
+            return 1.0f;
+        } else if (type == Short.class || type == short.class) {
+            return (short) 1;
+        } else if (type == Boolean.class || type == boolean.class) {
+            return true;
+        } else if (type == Character.class || type == char.class) {
+            // Databases return characters as Strings
+            return "w";
+        } else if (type == BigDecimal.class) {
+            return BigDecimal.ONE;
+        } else if (type == Timestamp.class || type == Date.class) {
+            return new Timestamp(0);
+        } else if (type == java.sql.Date.class) {
+            return new java.sql.Date(0);
+        } else if (type == byte[].class) {
+            return new byte[0];
+        }
+
+        return null;
+    }
+}
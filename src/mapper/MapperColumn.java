@@ -26,4 +26,8 @@ public @interface MapperColumn {
                                                     // as targetClass cannot be null
 
     boolean notNull() default false;                // True if the object can not be null
+
+    boolean version() default false;                // True if it's the version of the row, increased by every
+                                                    // update and checked by updates and deletions (optimistic
+                                                    // locking). Integer or Long, and not final
 }
@@ -0,0 +1,80 @@
+package mapper;
+
+import java.sql.SQLException;
+
+/**
+ * Failure of a mapper operation. When it was caused by the database, it keeps the SQLState and the vendor error code
+ * of the {@link SQLException SQLException}, so callers can tell apart, for example, serialization failures
+ * (SQLState 40001) or deadlocks (40P01) from the rest of errors. Check {@link RetryPolicy RetryPolicy}.
+ *
+ * @author luastan
+ * @author CardamaS99
+ * @author danimf99
+ * @author alvrogd
+ * @author OswaldOswin1
+ * @author Marcos-marpin
+ */
+public class MapperException extends Exception {
+
+    private static final long serialVersionUID = 1L;
+
+    private final String sqlState;
+    private final int errorCode;
+
+    /**
+     * @param message   description of the failure
+     * @param sqlState  SQLState reported by the database; null when the failure did not come from it
+     * @param errorCode vendor error code reported by the database; 0 when it is unknown
+     * @param cause     original exception
+     */
+    public MapperException(String message, String sqlState, int errorCode, Throwable cause) {
+        super(message, cause);
+        this.sqlState = sqlState;
+        this.errorCode = errorCode;
+    }
+
+    /**
+     * Wraps an exception thrown while performing a mapper operation, keeping its message
+     *
+     * @param e exception to be wrapped
+     * @return the same exception when it already is a MapperException; otherwise a new one, which keeps the SQLState
+     * of the first {@link SQLException SQLException} among the exception and its causes
+     */
+    public static MapperException of(Exception e) {
+        if (e instanceof MapperException) {
+            return (MapperException) e;
+        }
+
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause instanceof MapperException) {
+                MapperException mapperException = (MapperException) cause;
+                return new MapperException(e.getMessage(), mapperException.sqlState, mapperException.errorCode, e);
+            }
+            if (cause instanceof SQLException) {
+                SQLException sqlException = (SQLException) cause;
+
+                // Some drivers only report the state in the chained exceptions of a batch
+                while (sqlException.getSQLState() == null && sqlException.getNextException() != null) {
+                    sqlException = sqlException.getNextException();
+                }
+                return new MapperException(e.getMessage(), sqlException.getSQLState(), sqlException.getErrorCode(), e);
+            }
+        }
+
+        return new MapperException(e.getMessage(), null, 0, e);
+    }
+
+    /**
+     * @return the SQLState reported by the database; null when the failure did not come from it
+     */
+    public String getSQLState() {
+        return sqlState;
+    }
+
+    /**
+     * @return the vendor error code reported by the database; 0 when it is unknown
+     */
+    public int getErrorCode() {
+        return errorCode;
+    }
+}
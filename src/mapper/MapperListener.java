@@ -0,0 +1,109 @@
+package mapper;
+
+/**
+ * Instrumentation hook notified by the mappers around every interaction with the database. Every callback is tagged
+ * with the name of the {@link MapperTable MapperTable} involved (or an empty String for hand written SQL) and the kind
+ * of operation which is being performed.
+ * <p>
+ * All the methods do nothing by default, so implementations only need to override the events they care about.
+ * Implementations will be called from every thread which is using a mapper, so they must be thread safe.
+ *
+ * @author luastan
+ * @author CardamaS99
+ * @author danimf99
+ * @author alvrogd
+ * @author OswaldOswin1
+ * @author Marcos-marpin
+ * @see MapperMetrics
+ */
+public interface MapperListener {
+
+    /**
+     * Listener which ignores every event. Used by default by all the mappers.
+     */
+    MapperListener NONE = new MapperListener() {
+    };
+
+    /**
+     * Kinds of operations reported to the listeners
+     */
+    enum Operation {
+        QUERY,
+        INSERT,
+        UPDATE,
+        DELETE,
+        MERGE,
+        FOREIGN_KEY,
+        CUSTOM
+    }
+
+    /**
+     * A {@link java.sql.PreparedStatement PreparedStatement} has been prepared
+     *
+     * @param table     table name
+     * @param operation operation that required the statement
+     * @param nanos     time spent preparing the statement
+     */
+    default void statementPrepared(String table, Operation operation, long nanos) {
+    }
+
+    /**
+     * A statement has been executed against the database
+     *
+     * @param table     table name
+     * @param operation operation that executed the statement
+     * @param nanos     time spent by the database executing the statement
+     * @param rows      number of rows affected by the statement; -1 when it is unknown
+     */
+    default void statementExecuted(String table, Operation operation, long nanos, long rows) {
+    }
+
+    /**
+     * Rows coming from a result set have been mapped into Java objects
+     *
+     * @param table table name
+     * @param nanos time spent mapping the rows, without counting the foreign keys resolution
+     * @param rows  number of mapped rows
+     */
+    default void rowsMapped(String table, long nanos, long rows) {
+    }
+
+    /**
+     * A foreign key has been resolved querying the referenced table
+     *
+     * @param table referenced table name
+     * @param nanos time spent resolving the foreign key, including its mapping
+     */
+    default void foreignKeyResolved(String table, long nanos) {
+    }
+
+    /**
+     * A group of elements has been sent to the database by a single operation
+     *
+     * @param table     table name
+     * @param operation operation that sent the elements
+     * @param size      number of elements sent
+     */
+    default void batchExecuted(String table, Operation operation, int size) {
+    }
+
+    /**
+     * An operation run through a {@link RetryPolicy RetryPolicy} failed and is going to be retried
+     *
+     * @param sqlState     SQLState of the failure
+     * @param attempt      number of the failed attempt, starting from 1
+     * @param backoffNanos time to wait before the next attempt
+     */
+    default void operationRetried(String sqlState, int attempt, long backoffNanos) {
+    }
+
+    /**
+     * An operation run through a {@link RetryPolicy RetryPolicy} failed with a retryable error, but it is not going
+     * to be retried because it has reached the maximum number of attempts
+     *
+     * @param sqlState SQLState of the last failure
+     * @param attempts number of attempts performed
+     */
+    default void retriesExhausted(String sqlState, int attempts) {
+    }
+}
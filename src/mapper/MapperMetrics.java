@@ -0,0 +1,276 @@
+package mapper;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Default {@link MapperListener MapperListener} implementation. Aggregates in memory all the events reported by the
+ * mappers, grouped by table name and operation type.
+ * <p>
+ * Counters and histograms are lock free, so the same instance can be shared by every mapper of the application:
+ * <pre>
+ * MapperMetrics metrics = new MapperMetrics();
+ * Mapper.setDefaultListener(metrics);
+ * ...
+ * metrics.get("post", MapperListener.Operation.QUERY).getExecution().getMean();
+ * </pre>
+ *
+ * @author luastan
+ * @author CardamaS99
+ * @author danimf99
+ * @author alvrogd
+ * @author OswaldOswin1
+ * @author Marcos-marpin
+ */
+public class MapperMetrics implements MapperListener {
+
+    // Statistics indexed by "table:OPERATION"
+    private final ConcurrentHashMap<String, Stats> stats = new ConcurrentHashMap<>();
+
+    // Retries of the operations run through a RetryPolicy, indexed by SQLState, and nanoseconds waited before them
+    private final ConcurrentHashMap<String, LongAdder> retries = new ConcurrentHashMap<>();
+    private final LongAdder exhaustedRetries = new LongAdder();
+    private volatile Histogram backoff = new Histogram();
+
+    /**
+     * Obtains the statistics of an operation over a table, creating them when they don't exist yet
+     *
+     * @param table     table name
+     * @param operation operation type
+     * @return statistics collected for the given tag
+     */
+    public Stats get(String table, Operation operation) {
+        String key = table + ":" + operation.name();
+        Stats found = stats.get(key);
+
+        // computeIfAbsent is avoided on the hot path as it may lock the bin even when the key is present
+        return found != null ? found : stats.computeIfAbsent(key, k -> new Stats(table, operation));
+    }
+
+    /**
+     * @return a sorted snapshot of all the collected statistics indexed by "table:OPERATION"
+     */
+    public Map<String, Stats> snapshot() {
+        return Collections.unmodifiableMap(new TreeMap<>(stats));
+    }
+
+    /**
+     * @return number of retries of the operations run through a {@link RetryPolicy RetryPolicy}, indexed by the
+     * SQLState of the failure that caused them
+     */
+    public Map<String, Long> getRetries() {
+        TreeMap<String, Long> counts = new TreeMap<>();
+        retries.forEach((sqlState, count) -> counts.put(sqlState, count.sum()));
+        return Collections.unmodifiableMap(counts);
+    }
+
+    /**
+     * @return number of operations which failed after reaching the maximum number of attempts of their policy
+     */
+    public long getExhaustedRetries() {
+        return exhaustedRetries.sum();
+    }
+
+    /**
+     * @return nanoseconds waited before each retry
+     */
+    public Histogram getBackoff() {
+        return backoff;
+    }
+
+    /**
+     * Forgets all the collected statistics
+     */
+    public void reset() {
+        stats.clear();
+        retries.clear();
+        exhaustedRetries.reset();
+        backoff = new Histogram();
+    }
+
+    @Override
+    public void statementPrepared(String table, Operation operation, long nanos) {
+        get(table, operation).preparation.record(nanos);
+    }
+
+    @Override
+    public void statementExecuted(String table, Operation operation, long nanos, long rows) {
+        Stats tagged = get(table, operation);
+        tagged.execution.record(nanos);
+        if (rows > 0) {
+            tagged.affectedRows.add(rows);
+        }
+    }
+
+    @Override
+    public void rowsMapped(String table, long nanos, long rows) {
+        Stats tagged = get(table, Operation.QUERY);
+        tagged.mapping.record(nanos);
+        tagged.mappedRows.add(rows);
+    }
+
+    @Override
+    public void foreignKeyResolved(String table, long nanos) {
+        get(table, Operation.FOREIGN_KEY).execution.record(nanos);
+    }
+
+    @Override
+    public void batchExecuted(String table, Operation operation, int size) {
+        get(table, operation).batchSizes.record(size);
+    }
+
+    @Override
+    public void operationRetried(String sqlState, int attempt, long backoffNanos) {
+        LongAdder count = retries.get(sqlState);
+        (count != null ? count : retries.computeIfAbsent(sqlState, k -> new LongAdder())).increment();
+        backoff.record(backoffNanos);
+    }
+
+    @Override
+    public void retriesExhausted(String sqlState, int attempts) {
+        exhaustedRetries.increment();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        snapshot().values().forEach(s -> builder.append(s).append(System.lineSeparator()));
+        return builder.toString();
+    }
+
+    /**
+     * Statistics collected for a table and an operation type
+     */
+    public static class Stats {
+        private final String table;
+        private final Operation operation;
+        private final Histogram preparation = new Histogram();
+        private final Histogram execution = new Histogram();
+        private final Histogram mapping = new Histogram();
+        private final Histogram batchSizes = new Histogram();
+        private final LongAdder affectedRows = new LongAdder();
+        private final LongAdder mappedRows = new LongAdder();
+
+        private Stats(String table, Operation operation) {
+            this.table = table;
+            this.operation = operation;
+        }
+
+        public String getTable() {
+            return table;
+        }
+
+        public Operation getOperation() {
+            return operation;
+        }
+
+        /**
+         * @return nanoseconds spent preparing statements; its count is the number of prepared statements
+         */
+        public Histogram getPreparation() {
+            return preparation;
+        }
+
+        /**
+         * @return nanoseconds spent executing statements; for {@link Operation#FOREIGN_KEY FOREIGN_KEY} its count is
+         * the number of issued lookups
+         */
+        public Histogram getExecution() {
+            return execution;
+        }
+
+        /**
+         * @return nanoseconds spent mapping result sets into objects
+         */
+        public Histogram getMapping() {
+            return mapping;
+        }
+
+        /**
+         * @return number of elements sent by each batched operation
+         */
+        public Histogram getBatchSizes() {
+            return batchSizes;
+        }
+
+        public long getAffectedRows() {
+            return affectedRows.sum();
+        }
+
+        public long getMappedRows() {
+            return mappedRows.sum();
+        }
+
+        @Override
+        public String toString() {
+            return table + ":" + operation + " prepared=" + preparation.getCount() +
+                    " executed=" + execution.getCount() + " executionMean=" + execution.getMean() +
+                    "ns executionP99=" + execution.getPercentile(0.99) + "ns mapped=" + getMappedRows() +
+                    " mappingMean=" + mapping.getMean() + "ns affected=" + getAffectedRows() +
+                    " batchMean=" + batchSizes.getMean();
+        }
+    }
+
+    /**
+     * Lock free histogram with power of two buckets. Bucket i holds the values whose highest set bit is i - 1, so
+     * percentiles are approximated to the upper bound of their bucket.
+     */
+    public static class Histogram {
+        private final AtomicLongArray buckets = new AtomicLongArray(65);
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sum = new LongAdder();
+
+        /**
+         * Adds a value to the histogram
+         *
+         * @param value value to be recorded; negative values are recorded as 0
+         */
+        public void record(long value) {
+            value = Math.max(value, 0);
+            buckets.incrementAndGet(64 - Long.numberOfLeadingZeros(value));
+            count.increment();
+            sum.add(value);
+        }
+
+        public long getCount() {
+            return count.sum();
+        }
+
+        public long getSum() {
+            return sum.sum();
+        }
+
+        public double getMean() {
+            long total = getCount();
+            return total == 0 ? 0 : (double) getSum() / total;
+        }
+
+        /**
+         * Approximates a percentile of the recorded values
+         *
+         * @param percentile value between 0 and 1
+         * @return upper bound of the bucket where the percentile falls; 0 when nothing has been recorded
+         */
+        public long getPercentile(double percentile) {
+            long total = 0;
+            for (int i = 0; i < buckets.length(); i++) {
+                total += buckets.get(i);
+            }
+
+            long target = (long) Math.ceil(total * percentile);
+            long accumulated = 0;
+            for (int i = 0; i < buckets.length(); i++) {
+                accumulated += buckets.get(i);
+                if (accumulated >= target && accumulated > 0) {
+                    return i == 0 ? 0 : i == 64 ? Long.MAX_VALUE : (1L << i) - 1;
+                }
+            }
+
+            return 0;
+        }
+    }
+}
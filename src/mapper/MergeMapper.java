@@ -0,0 +1,220 @@
+package mapper;
+
+import java.lang.reflect.Field;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Database conection and upsert wrapper. Saves the given objects inserting them when their primary key does not exist
+ * yet in the database and updating them when it does, in a single round trip per group of objects and without
+ * reading them first.
+ * <p>
+ * The sentence is generated through the mapper's {@link SqlDialect SqlDialect}, for example
+ * INSERT ... ON CONFLICT (pk) DO UPDATE on PostgreSQL or MERGE on other databases.
+ *
+ * @param <T> Mapped class type. Used to check asigments on the mapped class
+ * @author luastan
+ * @author CardamaS99
+ * @author danimf99
+ * @author alvrogd
+ * @author OswaldOswin1
+ * @author Marcos-marpin
+ */
+public class MergeMapper<T> extends Mapper<T> {
+    private List<T> elementsMerge;
+
+    /**
+     * @param connection Database conection
+     */
+    public MergeMapper(Connection connection) {
+        super(connection);
+        this.elementsMerge = new ArrayList<>();
+    }
+
+    /**
+     * @param router Router providing the connections; merges are sent to its primary database
+     */
+    public MergeMapper(ConnectionRouter router) {
+        super(router, true);
+        this.elementsMerge = new ArrayList<>();
+    }
+
+    /**
+     * Defines the class representing the elements to be saved
+     *
+     * @param clase Class to be mapped
+     * @return MergeMapper instance
+     */
+    @Override
+    public MergeMapper<T> defineClass(Class<? extends T> clase) {
+        super.defineClass(clase);
+        return this;
+    }
+
+    /**
+     * Adds an object to be saved. It does not get saved until {@link MergeMapper#merge()} method gets executed
+     *
+     * @param object Object to be saved
+     * @return MergeMapper instance
+     */
+    public MergeMapper<T> add(T object) {
+        this.elementsMerge.add(object);
+        return this;
+    }
+
+    /**
+     * Adds multiple objects to the merge pool. Check {@link MergeMapper#add(Object)}
+     *
+     * @param objects Objects to be saved
+     * @return MergeMapper instance
+     */
+    public MergeMapper<T> addAll(T... objects) {
+        this.elementsMerge.addAll(Arrays.asList(objects));
+        return this;
+    }
+
+    /**
+     * Stores the given isolation level to apply it when executing the constructed transaction
+     *
+     * @param isolationLevel desired transaction isolation level
+     * @return merge mapper which is being built
+     */
+    @Override
+    public MergeMapper<T> setIsolationLevel(int isolationLevel) throws Exception {
+
+        return((MergeMapper<T>)super.setIsolationLevel(isolationLevel));
+    }
+
+    /**
+     * Defines the listener to be notified about the operations performed by this mapper
+     *
+     * @param listener listener to be used; null disables the notifications
+     * @return merge mapper which is being built
+     */
+    @Override
+    public MergeMapper<T> setListener(MapperListener listener) {
+        return (MergeMapper<T>) super.setListener(listener);
+    }
+
+    /**
+     * Defines the tracer that logs the statements executed by this mapper
+     *
+     * @param tracer tracer to be used; null disables the tracing
+     * @return merge mapper which is being built
+     */
+    @Override
+    public MergeMapper<T> setTracer(SqlTracer tracer) {
+        return (MergeMapper<T>) super.setTracer(tracer);
+    }
+
+    /**
+     * Defines the SQL dialect used to generate the upsert sentences
+     *
+     * @param dialect dialect to be used; null to detect it from the connection
+     * @return merge mapper which is being built
+     */
+    @Override
+    public MergeMapper<T> setDialect(SqlDialect dialect) {
+        return (MergeMapper<T>) super.setDialect(dialect);
+    }
+
+    /**
+     * Limits the time the operations of the mapper can take, counted from now
+     *
+     * @param timeout maximum time; 0 or less removes the limit
+     * @param unit    unit of the timeout
+     * @return merge mapper which is being built
+     */
+    @Override
+    public MergeMapper<T> setTimeout(long timeout, TimeUnit unit) {
+        return (MergeMapper<T>) super.setTimeout(timeout, unit);
+    }
+
+    /**
+     * Saves all the objects on the merge pool. Objects are grouped by the columns they write (columns with default
+     * values are left out when they are null), and every group is sent as a single JDBC batch.
+     * <p>
+     * Classes with a {@link MapperColumn#version() version} column cannot be merged, as the upsert would overwrite
+     * the version of the row instead of checking it; they are saved through {@link InsertionMapper InsertionMapper}
+     * and {@link UpdateMapper UpdateMapper}.
+     */
+    public void merge() throws Exception {
+        try {
+            String table = tableName(mappedClass);
+            List<String> pkColumns = new ArrayList<>(new TreeSet<>(getPK().keySet()));
+
+            // Rows to be written indexed by the columns they contain, keeping the order of the pool
+            LinkedHashMap<List<String>, List<Collection<Object>>> groups = new LinkedHashMap<>();
+
+            if (pkColumns.isEmpty()) {
+                throw new Exception("Merging requires a primary key in " + mappedClass.getName());
+            }
+            if (EntityMetadata.of(mappedClass).getVersionField() != null) {
+                throw new MapperException(mappedClass.getName() + " has a version column, so its rows cannot be " +
+                        "merged without skipping the optimistic locking", null, 0, null);
+            }
+
+            // Configures the connection to the database
+            configureConnection();
+
+            try {
+                for (T element : this.elementsMerge) {
+                    // Sorted by column name so every element with the same columns generates the same sentence
+                    TreeMap<String, Object> row = new TreeMap<>();
+
+                    for (Field field : mappedClass.getDeclaredFields()) {
+                        if (field.isAnnotationPresent(MapperColumn.class) &&
+                                field.getAnnotation(MapperColumn.class).targetClass() == Object.class) {
+                            field.setAccessible(true);
+                            Object value = field.get(element);
+
+                            // A null column with a default value keeps the value of the database
+                            if (value != null || !field.getAnnotation(MapperColumn.class).hasDefault()) {
+                                row.put(extractColumnName(field), value);
+                            }
+                        }
+                    }
+                    row.putAll(getFKs(element));
+
+                    if (!row.keySet().containsAll(pkColumns)) {
+                        throw new Exception("Every primary key of " + mappedClass.getName() + " is needed to merge it");
+                    }
+
+                    groups.computeIfAbsent(new ArrayList<>(row.keySet()), k -> new ArrayList<>()).add(row.values());
+                }
+            } catch (IllegalAccessException e) {
+                throw MapperException.of(e);
+            }
+
+            for (Map.Entry<List<String>, List<Collection<Object>>> group : groups.entrySet()) {
+                String mergeSql = getDialect().upsert(table, group.getKey(), pkColumns);
+
+                try (PreparedStatement statement = prepare(mergeSql, MapperListener.Operation.MERGE, table)) {
+                    for (Collection<Object> values : group.getValue()) {
+                        int index = 1;
+                        for (Object value : values) {
+                            statement.setObject(index++, value);
+                        }
+                        statement.addBatch();
+                    }
+
+                    long start = System.nanoTime();
+                    int[] counts = statement.executeBatch();
+                    long elapsed = System.nanoTime() - start;
+                    long affected = Arrays.stream(counts).filter(count -> count > 0).asLongStream().sum();
+                    listener.statementExecuted(table, MapperListener.Operation.MERGE, elapsed, affected);
+                    listener.batchExecuted(table, MapperListener.Operation.MERGE, counts.length);
+                    trace(table, mergeSql, null, elapsed, affected);
+                } catch (SQLException e) {
+                    throw MapperException.of(e);
+                }
+            }
+        } finally {
+            releaseConnection();
+        }
+    }
+}
@@ -0,0 +1,39 @@
+package mapper;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Thrown when an update or a deletion of objects with a version column affects no row, because another transaction
+ * changed or deleted the row since the objects were read. Check {@link MapperColumn#version()}.
+ *
+ * @author luastan
+ * @author CardamaS99
+ * @author danimf99
+ * @author alvrogd
+ * @author OswaldOswin1
+ * @author Marcos-marpin
+ */
+public class OptimisticLockException extends Exception {
+
+    private static final long serialVersionUID = 1L;
+
+    private final List<Object> staleObjects;
+
+    /**
+     * @param table        table of the objects
+     * @param staleObjects objects whose rows were not updated or deleted
+     */
+    public OptimisticLockException(String table, List<?> staleObjects) {
+        super(staleObjects.size() + " row(s) of " + table + " were changed or deleted by another transaction");
+        this.staleObjects = Collections.unmodifiableList(new ArrayList<>(staleObjects));
+    }
+
+    /**
+     * @return objects whose rows were not updated or deleted, which should be read again
+     */
+    public List<Object> getStaleObjects() {
+        return staleObjects;
+    }
+}
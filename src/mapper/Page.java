@@ -0,0 +1,93 @@
+package mapper;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+
+/**
+ * Page of results obtained through keyset pagination with {@link QueryMapper#page(int, String, boolean)}.
+ *
+ * @param <T> Mapped class type
+ * @author luastan
+ * @author CardamaS99
+ * @author danimf99
+ * @author alvrogd
+ * @author OswaldOswin1
+ * @author Marcos-marpin
+ */
+public class Page<T> {
+    private final List<T> items;
+    private final String continuationToken;
+
+    public Page(List<T> items, String continuationToken) {
+        this.items = items;
+        this.continuationToken = continuationToken;
+    }
+
+    /**
+     * @return mapped objects of the page, sorted by primary key
+     */
+    public List<T> getItems() {
+        return items;
+    }
+
+    /**
+     * @return opaque token to be passed to the next call in order to obtain the following page; null when this is
+     * the last page
+     */
+    public String getContinuationToken() {
+        return continuationToken;
+    }
+
+    public boolean hasNext() {
+        return continuationToken != null;
+    }
+
+    /**
+     * Encodes the primary key values of the last row of a page as a URL safe continuation token
+     *
+     * @param values atomic primary key values sorted by column name
+     * @return the continuation token
+     */
+    static String encodeToken(List<Object> values) throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+        try (DataOutputStream output = new DataOutputStream(bytes)) {
+            output.writeByte(values.size());
+            for (Object value : values) {
+                ValueCodec.write(output, value);
+            }
+        } catch (IOException e) {
+            throw MapperException.of(e);
+        }
+
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(bytes.toByteArray());
+    }
+
+    /**
+     * Decodes a continuation token generated by {@link Page#encodeToken(List)}
+     *
+     * @param token continuation token
+     * @return atomic primary key values sorted by column name
+     */
+    static List<Object> decodeToken(String token) throws Exception {
+        List<Object> values = new ArrayList<>();
+
+        try (DataInputStream input = new DataInputStream(new ByteArrayInputStream(Base64.getUrlDecoder()
+                .decode(token)))) {
+            int size = input.readUnsignedByte();
+            for (int i = 0; i < size; i++) {
+                values.add(ValueCodec.read(input));
+            }
+        } catch (IOException | IllegalArgumentException e) {
+            throw new MapperException("Invalid continuation token", null, 0, e);
+        }
+
+        return values;
+    }
+}
@@ -2,13 +2,27 @@ package mapper;
 
 
 
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.lang.reflect.Field;
-import java.lang.reflect.InvocationTargetException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.sql.Connection;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.*;
-import java.util.regex.Matcher;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Database conection and data retrieving wrapper. Automatically maps retreved
@@ -25,6 +39,32 @@ import java.util.regex.Matcher;
  */
 public class QueryMapper<T> extends Mapper<T> {
 
+    // Maximum number of keys looked up by each statement issued by a fetch plan
+    private static final int FETCH_BATCH_SIZE = 500;
+
+    // Column of each class whose values increase every time a row is inserted or changed
+    private static final ConcurrentHashMap<Class<?>, String> WATERMARKS = new ConcurrentHashMap<>();
+
+    // Encoded size of the results kept on the heap before spilling the rest of them to disk; 0 disables spilling
+    private long spillThreshold = 0;
+
+    // Number of rows obtained from the database on each round trip; 0 leaves the decision to the driver
+    private int fetchSize = 0;
+
+    // Rows mapped by each task of the parallel mapping, and the pool running them; 0 maps the rows sequentially
+    private int mappingChunkSize = 0;
+    private ForkJoinPool mappingPool = ForkJoinPool.commonPool();
+
+    // Set when the statement belongs to a CompiledQuery: it is closed by the compiled query, not by the mapper, and
+    // the binder of its results is kept
+    private boolean compiled = false;
+    private RowBinder<? extends T> compiledBinder;
+
+    // Columns whose values are kept from the last row read, which identify it to continue a keyset pagination; null
+    // when they are not needed
+    private List<String> keyColumns;
+    private List<Object> lastKey;
+
     /**
      * @param conexion Database conection object
      */
@@ -32,6 +72,40 @@ public class QueryMapper<T> extends Mapper<T> {
         super(conexion);
     }
 
+    /**
+     * @param router Router providing the connections; queries are sent to its replicas
+     */
+    public QueryMapper(ConnectionRouter router) {
+        super(router, false);
+    }
+
+    /**
+     * Executes a statement prepared by a {@link CompiledQuery CompiledQuery} instead of preparing a new one. The
+     * statement is not closed after the query, as the compiled query closes it.
+     *
+     * @param compiledStatement statement of the compiled query, prepared over the connection of this mapper
+     * @param query             SQL code of the statement
+     * @param binder            binder of the results of previous executions; null when it is not known yet
+     * @return Returns the Mapper instance
+     */
+    QueryMapper<T> useCompiled(PreparedStatement compiledStatement, String query, RowBinder<? extends T> binder)
+            throws SQLException {
+        applyLimits(compiledStatement);
+        this.statement = compiledStatement;
+        this.sql = query;
+        this.parameters = null;
+        this.compiled = true;
+        this.compiledBinder = binder;
+        return this;
+    }
+
+    /**
+     * @return binder of the results of the last query executed through {@link QueryMapper#useCompiled}
+     */
+    RowBinder<? extends T> getCompiledBinder() {
+        return compiledBinder;
+    }
+
     /**
      * Defines the sentence to be queried to the database
      *
@@ -40,13 +114,52 @@ public class QueryMapper<T> extends Mapper<T> {
      */
     public QueryMapper<T> createQuery(String query) throws Exception {
         try {
-            statement = connection.prepareStatement(query);
+            statement = prepare(query, MapperListener.Operation.QUERY, tableName(mappedClass));
+            sql = query;
+            parameters = null;
+            compiled = false;
+            compiledBinder = null;
         } catch (SQLException ex) {
-            throw new Exception(ex.getMessage());
+            throw MapperException.of(ex);
         }
         return this;
     }
 
+    /**
+     * Defines the query built by a criteria, along with its parameters. The class of the criteria becomes the
+     * mapped class.
+     *
+     * @param criteria criteria over the table of a mapped class
+     * @return Returns the Mapper instance
+     */
+    public QueryMapper<T> createQuery(Criteria<? extends T> criteria) throws Exception {
+        return defineClass(criteria.getMappedClass()).createQuery(criteria.getSql(getDialect()))
+                .defineParametersList(criteria.getParameters());
+    }
+
+    /**
+     * Defines a query over the table of the class defined at
+     * {@link QueryMapper#defineClass(Class)} which only retrieves the columns of
+     * the given fields, instead of every column of the table. Fields which are
+     * not retrieved keep the value given by the constructor.
+     *
+     * @param where  condition of the query, which may contain ? parameters; null
+     *               to retrieve every row
+     * @param fields Java names of the fields to be retrieved; when there are
+     *               none, every mapped field is retrieved
+     * @return Returns the Mapper instance
+     */
+    public QueryMapper<T> createSelect(String where, String... fields) throws Exception {
+        StringBuilder queryBuilder = new StringBuilder("SELECT ").append(selectColumns(mappedClass, fields))
+                .append(" FROM ").append(tableName(mappedClass));
+
+        if (where != null && !where.trim().isEmpty()) {
+            queryBuilder.append(" WHERE ").append(where);
+        }
+
+        return createQuery(queryBuilder.toString());
+    }
+
     /**
      * Returns a list with the query results propperly mapped to the Class
      * defined at {@link QueryMapper#defineClass(Class)}
@@ -57,83 +170,468 @@ public class QueryMapper<T> extends Mapper<T> {
      * @return Mapped objects from the query
      */
     public List<T> list(boolean useForeignKeys) throws Exception {
-        ArrayList<T> resultado = new ArrayList<>();
-        String nombreColumna;
-        Matcher matcher;
-        HashMap<String, Object> fkValues;
-        HashSet<String> columnas = new HashSet<>();
-        T elemento;
-        Class<?> foreignClass;
-        Boolean notPresent;
-
-        // Configures the connection to the database
-        configureConnection();
+        return list(useForeignKeys, null);
+    }
 
+    /**
+     * Returns a list with the query results propperly mapped to the Class
+     * defined at {@link QueryMapper#defineClass(Class)}, loading only the
+     * foreign keys named by the given plan.
+     * <p>
+     * Foreign keys are loaded level by level: all the objects referenced by a
+     * foreign key of the results are obtained together, with one query per
+     * {@value FETCH_BATCH_SIZE} distinct keys, and then the same happens with
+     * the foreign keys of those objects required by the plan.
+     *
+     * @param plan foreign keys to be loaded
+     * @return Mapped objects from the query
+     */
+    public List<T> list(FetchPlan plan) throws Exception {
+        return list(false, plan);
+    }
+
+    private List<T> list(boolean useForeignKeys, FetchPlan plan) throws Exception {
         try {
-            statement.execute();
-            ResultSet set = statement.getResultSet();
+            List<T> resultado = new ArrayList<>();
+            RowBinder<? extends T> binder = null;
+            String table = tableName(mappedClass);
+            long start;
+            long executionNanos;
+            long foreignKeysNanos = 0;
 
-            // Metadata parsing
-            if (set != null) {
-                for (int i = 1; i <= set.getMetaData().getColumnCount(); i++) {
-                    columnas.add(set.getMetaData().getColumnName(i));
-                }
+            // Rows waiting for the foreign keys of the fetch plan before being materialized
+            ArrayList<Object[]> rows = new ArrayList<>();
 
-                while (set.next()) {
-                    // Extracts required empty constructor and Fields to map the resutls
-                    elemento = mappedClass.getConstructor(new Class[]{}).newInstance();
-                    for (Field field : mappedClass.getDeclaredFields()) {
-                        field.setAccessible(true);
-                        if (field.isAnnotationPresent(MapperColumn.class)) {
-                            nombreColumna = extractColumnName(field);
-                            if (columnas.contains(nombreColumna) || field.getAnnotation(MapperColumn.class).targetClass() != Object.class) {
-                                foreignClass = field.getAnnotation(MapperColumn.class).targetClass();
-                                // Checks if the Field class has the MapperTable anotation. This means that it's a
-                                // foreign key and special actions are required
-                                if (foreignClass != Object.class &&
-                                        foreignClass.isAnnotationPresent(MapperTable.class)) {
-                                    if (useForeignKeys) {
-                                        // FKEYS
-                                        if (field.getAnnotation(MapperColumn.class).fKeys().equals("")) {
-                                            if(columnas.contains(nombreColumna)) {
-                                                field.set(elemento, getFK(foreignClass, set.getObject(nombreColumna)));
-                                            }
-                                        } else {
-                                            notPresent = false;
-                                            fkValues = new HashMap<>();
-                                            matcher = regexFKeys.matcher(field.getAnnotation(MapperColumn.class).fKeys());
-                                            while (matcher.find()) {
-                                                if (columnas.contains(matcher.group(1))) {
-                                                    fkValues.put(matcher.group(2), set.getObject(matcher.group(1)));
-                                                } else {
-                                                    notPresent = true;
-                                                }
-                                            }
-                                            if (!notPresent) {
-                                                field.set(elemento, getFK(foreignClass, fkValues));
-                                            }
-
-                                        }
-
-                                    }
-
-                                } else {
-                                    field.set(elemento, set.getObject(nombreColumna));
-                                }
+            // Foreign keys to be loaded by the fetch plan: for each field, the slots of the rows, the index of the
+            // field and the referenced key values
+            LinkedHashMap<Field, List<Object[]>> pending = new LinkedHashMap<>();
+
+            // Configures the connection to the database
+            configureConnection();
+
+            try {
+                statement.setFetchSize(fetchSize);
+                start = System.nanoTime();
+                statement.execute();
+                ResultSet set = statement.getResultSet();
+                executionNanos = System.nanoTime() - start;
+                listener.statementExecuted(table, MapperListener.Operation.QUERY, executionNanos, -1);
+
+                // Metadata parsing
+                if (set != null) {
+                    start = System.nanoTime();
+
+                    // Fields, columns and constructor are resolved once per result shape
+                    binder = compiledBinder != null ? compiledBinder : RowBinder.of(mappedClass, set);
+                    compiledBinder = compiled ? binder : null;
+                    resultado = resultList(binder);
+
+                    if (mappingChunkSize > 0) {
+                        foreignKeysNanos = mapInParallel(set, binder, useForeignKeys, plan, pending, rows, resultado);
+                    } else {
+                        for (long read = 1; set.next(); read++) {
+                            if (read % LIMITS_CHECK_INTERVAL == 0) {
+                                checkLimits();
+                            }
+
+                            Object[] slots = binder.read(set);
+                            if (keyColumns != null) {
+                                lastKey = readKey(set);
+                            }
+                            foreignKeysNanos += resolveForeignKeys(binder, slots, useForeignKeys, plan, pending);
+
+                            if (plan != null) {
+                                rows.add(slots);
+                            } else {
+                                resultado.add(binder.materialize(slots));
                             }
                         }
                     }
-                    resultado.add(elemento);
+
+                    // Time spent resolving foreign keys is reported on its own by getFK
+                    listener.rowsMapped(table, System.nanoTime() - start - foreignKeysNanos, resultado.size());
+                    executionNanos += System.nanoTime() - start - foreignKeysNanos;
+                }
+                trace(table, sql, parameters, executionNanos, Math.max(resultado.size(), rows.size()));
+                if (!compiled) {
+                    statement.close();
+                } else if (set != null) {
+                    set.close();
                 }
+
+                // Exception handling
+            } catch (SQLException | UncheckedIOException e) {
+                discard(resultado);
+                throw MapperException.of(e);
             }
-            statement.close();
 
-            // Exception handling
-        } catch (SQLException | IllegalAccessException | InvocationTargetException | InstantiationException |
-                NoSuchMethodException e) {
-            throw new Exception(e.getMessage());
+            try {
+                if (!pending.isEmpty()) {
+                    fetch(pending, plan);
+                }
+                for (Object[] slots : rows) {
+                    resultado.add(binder.materialize(slots));
+                }
+            } catch (Exception e) {
+                discard(resultado);
+                throw MapperException.of(e);
+            }
+
+            return resultado;
+        } finally {
+            releaseConnection();
         }
-        return resultado;
+    }
+
+    /**
+     * Replaces the foreign keys of a row by the referenced objects, or registers them to be loaded by the fetch plan
+     *
+     * @param binder         binder of the result set
+     * @param slots          slots of the row
+     * @param useForeignKeys when true and there is no plan, the referenced objects are obtained one by one
+     * @param plan           fetch plan applied to the rows; null when there is none
+     * @param pending        foreign keys to be loaded by the fetch plan
+     * @return time spent obtaining the referenced objects, in nanoseconds
+     */
+    private long resolveForeignKeys(RowBinder<? extends T> binder, Object[] slots, boolean useForeignKeys,
+                                    FetchPlan plan, Map<Field, List<Object[]>> pending) throws Exception {
+        long foreignKeysNanos = 0;
+
+        for (int i = 0; i < binder.size(); i++) {
+            Class<?> foreignClass = binder.getForeignClass(i);
+            if (foreignClass == null || slots[i] == RowBinder.ABSENT) {
+                continue;
+            }
+
+            Object fkValue = slots[i];
+            slots[i] = RowBinder.ABSENT;
+
+            if (plan != null) {
+                if (plan.includes(binder.getField(i).getName())) {
+                    pending.computeIfAbsent(binder.getField(i), k -> new ArrayList<>())
+                            .add(new Object[]{slots, i, fkValues(foreignClass, fkValue)});
+                }
+            } else if (useForeignKeys) {
+                long fkStart = System.nanoTime();
+                if (fkValue instanceof Map) {
+                    @SuppressWarnings("unchecked")
+                    Map<String, Object> fkValues = (Map<String, Object>) fkValue;
+                    slots[i] = getFK(foreignClass, fkValues);
+                } else {
+                    slots[i] = getFK(foreignClass, fkValue);
+                }
+                foreignKeysNanos += System.nanoTime() - fkStart;
+            }
+        }
+
+        return foreignKeysNanos;
+    }
+
+    /**
+     * Maps the rows of a result set through the mapping pool. The calling thread reads the raw values of the rows
+     * and submits them in chunks, which get converted and materialized by the pool while the following rows are
+     * read. At most two chunks per thread of the pool are in flight: once that many are waiting, the calling thread
+     * collects the oldest one before reading more rows, resolving its foreign keys and materializing its rows when
+     * the pool could not do it. Chunks are collected in the order they were read.
+     *
+     * @return time spent obtaining the referenced objects, in nanoseconds
+     */
+    private long mapInParallel(ResultSet set, RowBinder<? extends T> binder, boolean useForeignKeys, FetchPlan plan,
+                               Map<Field, List<Object[]>> pending, List<Object[]> rows, List<T> resultado)
+            throws Exception {
+        boolean materializeInPool = plan == null && (!useForeignKeys || !binder.hasForeignKeys());
+        int maxInFlight = Math.max(2, 2 * mappingPool.getParallelism());
+        ArrayDeque<ForkJoinTask<List<Object>>> chunks = new ArrayDeque<>();
+        long foreignKeysNanos = 0;
+
+        try {
+            boolean more = set.next();
+
+            while (more) {
+                checkLimits();
+
+                List<Object[]> chunk = new ArrayList<>(mappingChunkSize);
+                for (; more && chunk.size() < mappingChunkSize; more = set.next()) {
+                    chunk.add(binder.readColumns(set));
+                    if (keyColumns != null) {
+                        lastKey = readKey(set);
+                    }
+                }
+
+                chunks.add(mappingPool.submit(() -> {
+                    List<Object> mapped = new ArrayList<>(chunk.size());
+                    for (Object[] values : chunk) {
+                        Object[] slots = binder.bind(values);
+                        if (materializeInPool) {
+                            // Without a plan nor foreign keys to load, only ABSENT gets assigned to foreign key slots
+                            resolveForeignKeys(binder, slots, false, null, null);
+                            mapped.add(binder.materialize(slots));
+                        } else {
+                            mapped.add(slots);
+                        }
+                    }
+                    return mapped;
+                }));
+
+                if (chunks.size() >= maxInFlight) {
+                    foreignKeysNanos += collect(chunks.poll(), binder, materializeInPool, useForeignKeys, plan,
+                            pending, rows, resultado);
+                }
+            }
+
+            while (!chunks.isEmpty()) {
+                foreignKeysNanos += collect(chunks.poll(), binder, materializeInPool, useForeignKeys, plan, pending,
+                        rows, resultado);
+            }
+        } catch (ExecutionException e) {
+            chunks.forEach(chunk -> chunk.cancel(true));
+            throw MapperException.of(e.getCause() instanceof Exception ? (Exception) e.getCause() : e);
+        } catch (InterruptedException e) {
+            chunks.forEach(chunk -> chunk.cancel(true));
+            Thread.currentThread().interrupt();
+            throw MapperException.of(new SQLException("The thread was interrupted", "57014", e));
+        } catch (Exception e) {
+            // The rows could not be read, so the chunks already submitted are not needed
+            chunks.forEach(chunk -> chunk.cancel(true));
+            throw e;
+        }
+
+        return foreignKeysNanos;
+    }
+
+    /**
+     * Waits for a chunk mapped by the pool and adds its rows to the results
+     *
+     * @return time spent obtaining the referenced objects, in nanoseconds
+     */
+    @SuppressWarnings("unchecked")
+    private long collect(ForkJoinTask<List<Object>> chunk, RowBinder<? extends T> binder, boolean materializeInPool,
+                         boolean useForeignKeys, FetchPlan plan, Map<Field, List<Object[]>> pending,
+                         List<Object[]> rows, List<T> resultado) throws Exception {
+        long foreignKeysNanos = 0;
+
+        for (Object row : chunk.get()) {
+            if (materializeInPool) {
+                resultado.add((T) row);
+                continue;
+            }
+
+            Object[] slots = (Object[]) row;
+            foreignKeysNanos += resolveForeignKeys(binder, slots, useForeignKeys, plan, pending);
+            if (plan != null) {
+                rows.add(slots);
+            } else {
+                resultado.add(binder.materialize(slots));
+            }
+        }
+
+        return foreignKeysNanos;
+    }
+
+    /**
+     * Reads the values of the key columns of the current row of a result set
+     */
+    private List<Object> readKey(ResultSet set) throws SQLException {
+        List<Object> key = new ArrayList<>(keyColumns.size());
+
+        for (String column : keyColumns) {
+            key.add(set.getObject(column));
+        }
+
+        return key;
+    }
+
+    /**
+     * Creates the list that receives the results of a query
+     *
+     * @param binder binder of the result set
+     * @return a {@link SpillableList SpillableList} when spilling is enabled; an ArrayList otherwise
+     */
+    @SuppressWarnings("unchecked")
+    private List<T> resultList(RowBinder<? extends T> binder) {
+        if (spillThreshold <= 0) {
+            return new ArrayList<>();
+        }
+
+        return new SpillableList<>(spillThreshold, (SpillableList.Codec<T>) binder.codec());
+    }
+
+    /**
+     * Releases the temporary file of a result list which is not going to be returned
+     */
+    private static void discard(List<?> results) {
+        if (results instanceof SpillableList) {
+            try {
+                ((SpillableList<?>) results).close();
+            } catch (IOException ignored) {
+                // The file is opened with DELETE_ON_CLOSE, so it is removed as its channel gets closed; when that
+                // fails it is left in the temporary directory, and the failure of the query is the one reported
+            }
+        }
+    }
+
+    /**
+     * Obtains the values of the primary keys referenced by a foreign key
+     *
+     * @param foreignClass referenced class
+     * @param fkValue      foreign key slot, as read by {@link RowBinder#read(ResultSet)}
+     * @return the values indexed by the name of the referenced column
+     */
+    @SuppressWarnings("unchecked")
+    private Map<String, Object> fkValues(Class<?> foreignClass, Object fkValue) {
+        if (fkValue instanceof Map) {
+            return (Map<String, Object>) fkValue;
+        }
+
+        // The referenced class is identified by a single primary key
+        HashMap<String, Object> fkValues = new HashMap<>();
+        for (String pkColumn : getPK(foreignClass).keySet()) {
+            fkValues.put(pkColumn, fkValue);
+        }
+
+        return fkValues;
+    }
+
+    /**
+     * Loads the foreign keys gathered while mapping the results of a query
+     *
+     * @param pending for each foreign key field, the slots of the rows, the index of the field and the values of
+     *                the key they reference
+     * @param plan    fetch plan applied to the rows
+     */
+    private void fetch(Map<Field, List<Object[]>> pending, FetchPlan plan) throws Exception {
+        for (Map.Entry<Field, List<Object[]>> entry : pending.entrySet()) {
+            Field field = entry.getKey();
+            Class<?> foreignClass = field.getAnnotation(MapperColumn.class).targetClass();
+            List<String> pkColumns = new ArrayList<>(new TreeSet<>(getPK(foreignClass).keySet()));
+
+            // Rows waiting for each referenced key
+            LinkedHashMap<List<Object>, List<Object[]>> waiting = new LinkedHashMap<>();
+            for (Object[] reference : entry.getValue()) {
+                @SuppressWarnings("unchecked")
+                Map<String, Object> values = (Map<String, Object>) reference[2];
+
+                // If any of the pkeys is null then the object should be null too
+                if (values.values().stream().noneMatch(Objects::isNull)) {
+                    List<Object> key = new ArrayList<>();
+                    for (String pkColumn : pkColumns) {
+                        key.add(fetchKeyValue(values.get(pkColumn)));
+                    }
+                    waiting.computeIfAbsent(key, k -> new ArrayList<>()).add(reference);
+                }
+            }
+
+            Map<List<Object>, Object> loaded = fetchByKeys(foreignClass, pkColumns, new ArrayList<>(waiting.keySet()),
+                    plan.child(field.getName()));
+
+            for (Map.Entry<List<Object>, List<Object[]>> references : waiting.entrySet()) {
+                Object referenced = loaded.get(references.getKey());
+                for (Object[] reference : references.getValue()) {
+                    ((Object[]) reference[0])[(Integer) reference[1]] = referenced;
+                }
+            }
+        }
+    }
+
+    /**
+     * Obtains the objects of a class identified by the given primary keys, in groups of
+     * {@value FETCH_BATCH_SIZE} keys per query
+     *
+     * @param clase     mapped class of the objects
+     * @param pkColumns primary key columns of the class, sorted by name
+     * @param keys      primary key values of each object, in the same order as the columns
+     * @param plan      fetch plan applied to the obtained objects
+     * @return the obtained objects indexed by their primary key values
+     */
+    private Map<List<Object>, Object> fetchByKeys(Class<?> clase, List<String> pkColumns, List<List<Object>> keys,
+                                                  FetchPlan plan) throws Exception {
+        if (shards == null) {
+            return fetchByKeys(clase, pkColumns, keys, plan, null);
+        }
+
+        // When the data is sharded, each key is looked up in the shard owning it
+        LinkedHashMap<ConnectionRouter, List<List<Object>>> byShard = new LinkedHashMap<>();
+        for (List<Object> key : keys) {
+            HashMap<String, Object> atomicPks = new HashMap<>();
+            for (int i = 0; i < pkColumns.size(); i++) {
+                atomicPks.put(pkColumns.get(i), key.get(i));
+            }
+            byShard.computeIfAbsent(shards.routerOf(atomicPks), k -> new ArrayList<>()).add(key);
+        }
+
+        HashMap<List<Object>, Object> loaded = new HashMap<>();
+        for (Map.Entry<ConnectionRouter, List<List<Object>>> shard : byShard.entrySet()) {
+            loaded.putAll(fetchByKeys(clase, pkColumns, shard.getValue(), plan, shard.getKey()));
+        }
+
+        return loaded;
+    }
+
+    /**
+     * Obtains the objects identified by the given primary keys from a single database. Check
+     * {@link QueryMapper#fetchByKeys(Class, List, List, FetchPlan)}
+     *
+     * @param shard router of the shard holding the objects; null to use the connection of this mapper
+     */
+    private Map<List<Object>, Object> fetchByKeys(Class<?> clase, List<String> pkColumns, List<List<Object>> keys,
+                                                  FetchPlan plan, ConnectionRouter shard) throws Exception {
+        HashMap<List<Object>, Object> loaded = new HashMap<>();
+        String table = tableName(clase);
+
+        for (int from = 0; from < keys.size(); from += FETCH_BATCH_SIZE) {
+            List<List<Object>> batch = keys.subList(from, Math.min(from + FETCH_BATCH_SIZE, keys.size()));
+            ArrayList<Object> params = new ArrayList<>();
+            StringBuilder queryBuilder = new StringBuilder("SELECT ").append(selectColumns(clase)).append(" FROM ")
+                    .append(table).append(" WHERE ");
+            long start = System.nanoTime();
+
+            if (pkColumns.size() == 1) {
+                // SELECT * FROM [TABLE] WHERE [PRIMARY_KEY] IN (?, ?, ...)
+                queryBuilder.append(pkColumns.get(0)).append(" IN (");
+                for (List<Object> key : batch) {
+                    queryBuilder.append(params.isEmpty() ? "?" : ", ?");
+                    params.add(key.get(0));
+                }
+                queryBuilder.append(")");
+            } else {
+                // SELECT * FROM [TABLE] WHERE (a = ? AND b = ?) OR (a = ? AND b = ?) ...
+                for (List<Object> key : batch) {
+                    queryBuilder.append(params.isEmpty() ? "(" : " OR (");
+                    for (int i = 0; i < pkColumns.size(); i++) {
+                        queryBuilder.append(i == 0 ? "" : " AND ").append(pkColumns.get(i)).append(" = ?");
+                        params.add(key.get(i));
+                    }
+                    queryBuilder.append(")");
+                }
+            }
+
+            QueryMapper<Object> queryMapper = inherit(shard == null ?
+                    new QueryMapper<>(connection(false)) : new QueryMapper<>(shard)).defineClass(clase);
+            for (Object object : queryMapper.createQuery(queryBuilder.toString()).defineParametersList(params)
+                    .list(plan.isEmpty() ? null : plan)) {
+                List<Object> key = new ArrayList<>();
+                for (Object value : keyOf(object)) {
+                    key.add(fetchKeyValue(value));
+                }
+                loaded.put(key, object);
+            }
+
+            listener.foreignKeyResolved(table, System.nanoTime() - start);
+        }
+
+        return loaded;
+    }
+
+    /**
+     * Normalizes a key value, as the same key may be obtained with different integer types from a foreign key column
+     * and from a primary key field
+     */
+    private static Object fetchKeyValue(Object value) {
+        if (value instanceof Integer || value instanceof Short || value instanceof Byte) {
+            return ((Number) value).longValue();
+        }
+
+        return value;
     }
 
     /**
@@ -185,6 +683,61 @@ public class QueryMapper<T> extends Mapper<T> {
         return this;
     }
 
+    /**
+     * Enables spilling results to disk for queries whose results do not fit on the heap. Once the encoded size of the
+     * results reaches the threshold, {@link QueryMapper#list(boolean)} and {@link QueryMapper#mapList()} write the
+     * rest of them to a temporary file and return a {@link SpillableList SpillableList}, which decodes them every
+     * time they are accessed. The caller should close it when done to delete the file.
+     * <p>
+     * Only the values supported by {@link ValueCodec ValueCodec} can be spilled, so results whose foreign keys have
+     * been loaded cannot be spilled; use list(false) instead.
+     *
+     * @param bytes encoded size of the results kept on the heap; 0 disables spilling
+     * @return query mapper which is being built
+     */
+    public QueryMapper<T> setSpillThreshold(long bytes) {
+        this.spillThreshold = Math.max(bytes, 0);
+        return this;
+    }
+
+    /**
+     * Defines the number of rows obtained from the database on each round trip while reading the results. Some
+     * drivers, like PostgreSQL's, only honour it when auto-commit is disabled.
+     *
+     * @param rows rows per round trip; 0 leaves the decision to the driver
+     * @return query mapper which is being built
+     */
+    public QueryMapper<T> setFetchSize(int rows) {
+        this.fetchSize = Math.max(rows, 0);
+        return this;
+    }
+
+    /**
+     * Maps the results of {@link QueryMapper#list(boolean)} in parallel: while the calling thread reads the rows, the
+     * common fork-join pool converts them and creates the objects, in chunks of the given size. The results keep the
+     * order of the rows. Worth it when mapping, rather than the database, is the bottleneck.
+     *
+     * @param chunkSize rows mapped by each task; 0 maps the rows sequentially
+     * @return query mapper which is being built
+     */
+    public QueryMapper<T> setParallelMapping(int chunkSize) {
+        return setParallelMapping(chunkSize, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Maps the results of {@link QueryMapper#list(boolean)} in parallel through the given pool. Check
+     * {@link QueryMapper#setParallelMapping(int)}
+     *
+     * @param chunkSize rows mapped by each task; 0 maps the rows sequentially
+     * @param pool      pool which maps the rows
+     * @return query mapper which is being built
+     */
+    public QueryMapper<T> setParallelMapping(int chunkSize, ForkJoinPool pool) {
+        this.mappingChunkSize = Math.max(chunkSize, 0);
+        this.mappingPool = pool;
+        return this;
+    }
+
     /**
      * Stores the given isolation level to apply it when executing the constructed transaction
      *
@@ -197,6 +750,51 @@ public class QueryMapper<T> extends Mapper<T> {
         return((QueryMapper<T>)super.setIsolationLevel(isolationLevel));
     }
 
+    /**
+     * Defines the listener to be notified about the operations performed by this mapper
+     *
+     * @param listener listener to be used; null disables the notifications
+     * @return query mapper which is being built
+     */
+    @Override
+    public QueryMapper<T> setListener(MapperListener listener) {
+        return (QueryMapper<T>) super.setListener(listener);
+    }
+
+    /**
+     * Defines the tracer that logs the statements executed by this mapper
+     *
+     * @param tracer tracer to be used; null disables the tracing
+     * @return query mapper which is being built
+     */
+    @Override
+    public QueryMapper<T> setTracer(SqlTracer tracer) {
+        return (QueryMapper<T>) super.setTracer(tracer);
+    }
+
+    /**
+     * Defines the SQL dialect used to generate the sentences that are not portable between databases
+     *
+     * @param dialect dialect to be used; null to detect it from the connection
+     * @return query mapper which is being built
+     */
+    @Override
+    public QueryMapper<T> setDialect(SqlDialect dialect) {
+        return (QueryMapper<T>) super.setDialect(dialect);
+    }
+
+    /**
+     * Limits the time the operations of the mapper can take, counted from now
+     *
+     * @param timeout maximum time; 0 or less removes the limit
+     * @param unit    unit of the timeout
+     * @return query mapper which is being built
+     */
+    @Override
+    public QueryMapper<T> setTimeout(long timeout, TimeUnit unit) {
+        return (QueryMapper<T>) super.setTimeout(timeout, unit);
+    }
+
     /* Closing methods */
 
     /**
@@ -208,31 +806,418 @@ public class QueryMapper<T> extends Mapper<T> {
      * @return Map list with the query Results
      */
     public List<Map<String, Object>> mapList() throws Exception {
-        List<Map<String, Object>> resultadosMapeados = new ArrayList<>();
-        Map<String, Object> element;
-        ArrayList<String> columnas = new ArrayList<>();
-        ResultSet set;
+        try {
+            List<Map<String, Object>> resultadosMapeados = new ArrayList<>();
+            Map<String, Object> element;
+            ArrayList<String> columnas = new ArrayList<>();
+            ResultSet set;
+            long start;
+            long executionNanos;
 
-        // Configures the connection to the database
-        configureConnection();
+            // Configures the connection to the database
+            configureConnection();
 
+            try {
+                statement.setFetchSize(fetchSize);
+                start = System.nanoTime();
+                statement.execute();
+                set = statement.getResultSet();
+                executionNanos = System.nanoTime() - start;
+                listener.statementExecuted("", MapperListener.Operation.QUERY, executionNanos, -1);
+
+                start = System.nanoTime();
+                for (int i = 1; i <= set.getMetaData().getColumnCount(); i++) {
+                    columnas.add(set.getMetaData().getColumnName(i));
+                }
+                if (spillThreshold > 0) {
+                    resultadosMapeados = new SpillableList<>(spillThreshold, SpillableList.mapCodec(columnas));
+                }
+                while (set.next()) {
+                    if (resultadosMapeados.size() % LIMITS_CHECK_INTERVAL == LIMITS_CHECK_INTERVAL - 1) {
+                        checkLimits();
+                    }
+                    element = new HashMap<>();
+                    for (String columna : columnas) {
+                        element.put(columna, set.getObject(columna));
+                    }
+                    resultadosMapeados.add(element);
+                }
+                listener.rowsMapped("", System.nanoTime() - start, resultadosMapeados.size());
+                trace("", sql, parameters, executionNanos + System.nanoTime() - start, resultadosMapeados.size());
+            } catch (SQLException | UncheckedIOException e) {
+                discard(resultadosMapeados);
+                throw MapperException.of(e);
+            }
+            return resultadosMapeados;
+        } finally {
+            releaseConnection();
+        }
+    }
+
+    /**
+     * Writes the results of the query to a channel in the given format, row by row as they are read from the result
+     * set, without mapping them into objects or Maps. Combined with {@link QueryMapper#setFetchSize(int)}, the memory
+     * used does not depend on the number of rows. The file can be loaded again with
+     * {@link InsertionMapper#importRows(ReadableByteChannel, RowFormat, String)}.
+     *
+     * @param channel destination of the rows; it is not closed
+     * @param format  format of the rows
+     * @return number of exported rows
+     */
+    public long export(WritableByteChannel channel, RowFormat format) throws Exception {
         try {
-            statement.execute();
-            set = statement.getResultSet();
-            for (int i = 1; i <= set.getMetaData().getColumnCount(); i++) {
-                columnas.add(set.getMetaData().getColumnName(i));
+            String table = tableName(mappedClass);
+            long rows = 0;
+
+            // Configures the connection to the database
+            configureConnection();
+
+            try (DataOutputStream output = RowFormat.output(channel)) {
+                statement.setFetchSize(fetchSize);
+                long start = System.nanoTime();
+                statement.execute();
+                ResultSet set = statement.getResultSet();
+                listener.statementExecuted(table, MapperListener.Operation.QUERY, System.nanoTime() - start, -1);
+
+                if (set != null) {
+                    List<String> columns = RowBinder.columnsOf(set);
+                    Object[] values = new Object[columns.size()];
+                    format.writeHeader(output, columns);
+
+                    while (set.next()) {
+                        if (rows % LIMITS_CHECK_INTERVAL == LIMITS_CHECK_INTERVAL - 1) {
+                            checkLimits();
+                        }
+                        for (int i = 0; i < values.length; i++) {
+                            values[i] = set.getObject(i + 1);
+                        }
+                        format.writeRow(output, values);
+                        rows++;
+                    }
+                    format.writeEnd(output);
+                }
+
+                trace(table, sql, parameters, System.nanoTime() - start, rows);
+                statement.close();
+            } catch (SQLException | IOException e) {
+                throw MapperException.of(e);
             }
-            while (set.next()) {
-                element = new HashMap<>();
-                for (String columna : columnas) {
-                    element.put(columna, set.getObject(columna));
+
+            return rows;
+        } finally {
+            releaseConnection();
+        }
+    }
+
+    /**
+     * Writes the results of the query to a file. Check {@link QueryMapper#export(WritableByteChannel, RowFormat)}
+     *
+     * @param path   file to be written; it gets replaced when it already exists
+     * @param format format of the rows
+     * @return number of exported rows
+     */
+    public long export(Path path, RowFormat format) throws Exception {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            return export(channel, format);
+        } catch (IOException e) {
+            throw MapperException.of(e);
+        }
+    }
+
+    /**
+     * Obtains a page of the table mapped by the class defined at {@link QueryMapper#defineClass(Class)}, using
+     * keyset pagination over its primary keys instead of OFFSET. The rows are sorted by their primary key columns
+     * (in the order of their names), and each page starts right after the last row of the previous one, so deep
+     * pages cost the same as the first one.
+     * <p>
+     * The SQL statement defined with {@link QueryMapper#createQuery(String)}, if any, gets replaced.
+     *
+     * @param pageSize          maximum number of rows of the page
+     * @param continuationToken token from the previous page; null to obtain the first page
+     * @param useForeignKeys    Same atribute as in {@link QueryMapper#list(boolean)}
+     * @return the page, along with the token to obtain the following one
+     */
+    public Page<T> page(int pageSize, String continuationToken, boolean useForeignKeys) throws Exception {
+        List<String> pkColumns = new ArrayList<>(new TreeSet<>(getPK().keySet()));
+        ArrayList<Object> params = new ArrayList<>();
+
+        if (pkColumns.isEmpty()) {
+            throw new Exception("Keyset pagination requires a primary key in " + mappedClass.getName());
+        }
+
+        StringBuilder queryBuilder = new StringBuilder("SELECT ").append(selectColumns(mappedClass)).append(" FROM ")
+                .append(tableName(mappedClass));
+
+        if (continuationToken != null) {
+            List<Object> lastKey = Page.decodeToken(continuationToken);
+            if (lastKey.size() != pkColumns.size()) {
+                throw new Exception("Continuation token does not match the primary key of " + mappedClass.getName());
+            }
+
+            // Row value comparisons are not supported by every database, so (a, b) > (?, ?) gets expanded into
+            // a > ? OR (a = ? AND b > ?)
+            queryBuilder.append(" WHERE ");
+            for (int i = 0; i < pkColumns.size(); i++) {
+                queryBuilder.append(i == 0 ? "(" : " OR (");
+                for (int j = 0; j < i; j++) {
+                    queryBuilder.append(pkColumns.get(j)).append(" = ? AND ");
+                    params.add(lastKey.get(j));
                 }
-                resultadosMapeados.add(element);
+                queryBuilder.append(pkColumns.get(i)).append(" > ?)");
+                params.add(lastKey.get(i));
+            }
+        }
+
+        queryBuilder.append(" ORDER BY ").append(String.join(", ", pkColumns));
+        params.add(pageSize);
+
+        // The token is built from the primary key columns of the last row, as the objects do not hold the values of
+        // the foreign keys which are not loaded
+        List<T> items;
+        keyColumns = pkColumns;
+        lastKey = null;
+        try {
+            items = createQuery(getDialect().limit(queryBuilder.toString())).defineParametersList(params)
+                    .list(useForeignKeys);
+        } finally {
+            keyColumns = null;
+        }
+
+        // A page shorter than the requested size means that there are no more rows
+        String nextToken = items.size() < pageSize || items.isEmpty() ? null : Page.encodeToken(lastKey);
+
+        return new Page<>(items, nextToken);
+    }
+
+    /**
+     * Does the same as {@link QueryMapper#page(int, String, boolean)} with the foreign keys boolean as true
+     *
+     * @param pageSize          maximum number of rows of the page
+     * @param continuationToken token from the previous page; null to obtain the first page
+     * @return the page, along with the token to obtain the following one
+     */
+    public Page<T> page(int pageSize, String continuationToken) throws Exception {
+        return page(pageSize, continuationToken, true);
+    }
+
+    /**
+     * Checks whether the query defined with {@link QueryMapper#createQuery(String)} returns any row. The query gets
+     * wrapped into SELECT CASE WHEN EXISTS (query) THEN 1 ELSE 0 END, or its equivalent in the dialect of the
+     * database ({@link SqlDialect#exists(String)}), so the database stops at the first row and no row is sent back
+     * nor mapped.
+     *
+     * @return true when the query returns at least one row
+     */
+    public boolean exists() throws Exception {
+        return ((Number) scalar(getDialect().exists(definedQuery()), parameters)).intValue() == 1;
+    }
+
+    /**
+     * Checks whether the table of the class defined at {@link QueryMapper#defineClass(Class)} has any row meeting
+     * a condition, without preparing a query first
+     *
+     * @param where      condition, which may contain ? parameters; null to check if the table has any row
+     * @param parameters parameters of the condition
+     * @return true when some row meets the condition
+     */
+    public boolean exists(String where, Object... parameters) throws Exception {
+        return ((Number) scalar(getDialect().exists("SELECT 1 FROM " + tableName(mappedClass) + whereClause(where)),
+                Arrays.asList(parameters))).intValue() == 1;
+    }
+
+    /**
+     * Checks whether an object of the class defined at {@link QueryMapper#defineClass(Class)} exists, given its
+     * primary key
+     *
+     * @param pkValues atomic primary key values, in the declaration order of their fields
+     * @return true when the object exists
+     */
+    public boolean existsByPk(Object... pkValues) throws Exception {
+        return ((Number) scalar(SqlTemplates.existsByPk(mappedClass, getDialect()), Arrays.asList(pkValues)))
+                .intValue() == 1;
+    }
+
+    /**
+     * Counts the rows returned by the query defined with {@link QueryMapper#createQuery(String)}, which gets wrapped
+     * into SELECT COUNT(*) FROM (query), so no row is sent back nor mapped
+     *
+     * @return number of rows of the query
+     */
+    public long count() throws Exception {
+        return ((Number) scalar("SELECT COUNT(*) FROM " + getDialect().derivedTable(definedQuery(), "q"),
+                parameters)).longValue();
+    }
+
+    /**
+     * Counts the rows of the table of the class defined at {@link QueryMapper#defineClass(Class)} meeting a
+     * condition, without preparing a query first
+     *
+     * @param where      condition, which may contain ? parameters; null to count every row
+     * @param parameters parameters of the condition
+     * @return number of rows meeting the condition
+     */
+    public long count(String where, Object... parameters) throws Exception {
+        return ((Number) scalar("SELECT COUNT(*) FROM " + tableName(mappedClass) + whereClause(where),
+                Arrays.asList(parameters))).longValue();
+    }
+
+    /**
+     * Computes an aggregate over the rows returned by the query defined with {@link QueryMapper#createQuery(String)},
+     * which gets wrapped into SELECT expression FROM (query) q. The columns of the query are referenced by their
+     * name:
+     * <pre>
+     * Double average = new QueryMapper&lt;Post&gt;(connection).createQuery("SELECT likes FROM post WHERE author = ?")
+     *         .defineParameters(author).aggregate("AVG(likes)", Double.class);
+     * </pre>
+     *
+     * @param expression aggregate expression, such as MAX(column) or SUM(a * b)
+     * @param type       class of the result, to which the value returned by the database gets converted
+     * @return the value of the aggregate; null when the database returns null
+     */
+    @SuppressWarnings("unchecked")
+    public <N> N aggregate(String expression, Class<N> type) throws Exception {
+        return (N) convert(scalar("SELECT " + expression + " FROM " + getDialect().derivedTable(definedQuery(), "q"),
+                parameters), type);
+    }
+
+    /**
+     * @return the query defined with {@link QueryMapper#createQuery(String)}, whose statement is discarded as it
+     * gets wrapped into another one
+     */
+    private String definedQuery() throws Exception {
+        if (sql == null) {
+            throw new Exception("No query has been defined");
+        }
+
+        try {
+            if (statement != null && !compiled) {
+                statement.close();
             }
         } catch (SQLException e) {
-            throw new Exception(e.getMessage());
+            throw MapperException.of(e);
+        }
+
+        return sql;
+    }
+
+    private static String whereClause(String where) {
+        return where == null || where.trim().isEmpty() ? "" : " WHERE " + where;
+    }
+
+    /**
+     * Executes a query which returns a single value
+     *
+     * @param query      SQL code of the query
+     * @param parameters parameters of the query
+     * @return the value of the first column of the first row; null when there are no rows
+     */
+    private Object scalar(String query, List<?> parameters) throws Exception {
+        try {
+            String table = tableName(mappedClass);
+
+            // Configures the connection to the database
+            configureConnection();
+
+            try (PreparedStatement scalar = prepare(query, MapperListener.Operation.QUERY, table)) {
+                int index = 1;
+                for (Object parameter : parameters == null ? Collections.emptyList() : parameters) {
+                    scalar.setObject(index++, parameter);
+                }
+
+                long start = System.nanoTime();
+                Object value;
+                try (ResultSet set = scalar.executeQuery()) {
+                    value = set.next() ? set.getObject(1) : null;
+                }
+                long elapsed = System.nanoTime() - start;
+
+                listener.statementExecuted(table, MapperListener.Operation.QUERY, elapsed, -1);
+                trace(table, query, parameters, elapsed, 1);
+                return value;
+            } catch (SQLException e) {
+                throw MapperException.of(e);
+            }
+        } finally {
+            releaseConnection();
         }
-        return resultadosMapeados;
+    }
+
+    /**
+     * Registers the watermark column of a class, used by {@link QueryMapper#fetchChangesSince(Object, Map)}. Its
+     * values must increase every time a row is inserted or changed, like an update timestamp or a sequence set by
+     * a trigger.
+     *
+     * @param clase  mapped class
+     * @param column column of a field of the class which is not a foreign key
+     */
+    public static void registerWatermark(Class<?> clase, String column) {
+        if (!EntityMetadata.of(clase).getPlainFields().containsKey(column)) {
+            throw new IllegalArgumentException(clase.getName() + " does not map the column " + column);
+        }
+
+        WATERMARKS.put(clase, column);
+    }
+
+    /**
+     * Obtains the rows of the class defined at {@link QueryMapper#defineClass(Class)} inserted or changed since a
+     * watermark, so a view of the table kept in memory can be refreshed without reading the whole table again:
+     * <pre>
+     * Map&lt;List&lt;Object&gt;, Post&gt; posts = new HashMap&lt;&gt;();
+     * Object watermark = null;
+     *
+     * // On each refresh
+     * watermark = new QueryMapper&lt;Post&gt;(connection).defineClass(Post.class)
+     *         .fetchChangesSince(watermark, posts).getWatermark();
+     * </pre>
+     * The watermark column of the class must have been registered with
+     * {@link QueryMapper#registerWatermark(Class, String)}. Rows whose watermark equals the given one are obtained
+     * again, as rows committed later may share it; merging them into the view does not change it. Deleted rows
+     * cannot be detected this way.
+     * <p>
+     * The SQL statement defined with {@link QueryMapper#createQuery(String)}, if any, gets replaced.
+     *
+     * @param watermark watermark returned by the previous call; null to obtain every row
+     * @param view      objects of the class indexed by their atomic primary key values, sorted by column name, where
+     *                  the obtained objects are stored, replacing the previous versions; null to only return them
+     * @return the changed rows, along with the watermark to obtain the following changes
+     */
+    public Changes<T> fetchChangesSince(Object watermark, Map<List<Object>, T> view) throws Exception {
+        String column = WATERMARKS.get(mappedClass);
+        if (column == null) {
+            throw new MapperException("No watermark column has been registered for " + mappedClass.getName(), null,
+                    0, null);
+        }
+
+        StringBuilder queryBuilder = new StringBuilder("SELECT ").append(selectColumns(mappedClass)).append(" FROM ")
+                .append(tableName(mappedClass));
+        ArrayList<Object> params = new ArrayList<>();
+
+        if (watermark != null) {
+            queryBuilder.append(" WHERE ").append(column).append(" >= ?");
+            params.add(watermark);
+        }
+        queryBuilder.append(" ORDER BY ").append(column);
+
+        List<T> items = createQuery(queryBuilder.toString()).defineParametersList(params).list();
+
+        if (view != null) {
+            for (T item : items) {
+                view.put(keyOf(item), item);
+            }
+        }
+
+        // Rows are sorted by their watermark, so the last one holds the greatest. Null watermarks may be sorted last
+        Field watermarkField = EntityMetadata.of(mappedClass).getPlainFields().get(column);
+        Object next = watermark;
+        for (int i = items.size() - 1; i >= 0 && next == watermark; i--) {
+            Object value = watermarkField.get(items.get(i));
+            if (value != null) {
+                next = value;
+            }
+        }
+
+        return new Changes<>(items, next);
     }
 
     /**
@@ -254,6 +1239,42 @@ public class QueryMapper<T> extends Mapper<T> {
     }
 
 
+    /**
+     * Executes {@link QueryMapper#list(boolean)} through the given executor. Cancelling the returned future cancels
+     * the query, including the lookups of its foreign keys, as {@link Mapper#cancel()} does.
+     *
+     * @param useForeignKeys Same atribute as in {@link QueryMapper#list(boolean)}
+     * @param executor       executor running the query; its threads block on the database
+     * @return future completed with the mapped objects
+     */
+    public CompletableFuture<List<T>> listAsync(boolean useForeignKeys, Executor executor) {
+        CompletableFuture<List<T>> future = new CompletableFuture<List<T>>() {
+            @Override
+            public boolean cancel(boolean mayInterruptIfRunning) {
+                boolean cancelled = super.cancel(mayInterruptIfRunning);
+                if (cancelled) {
+                    QueryMapper.this.cancel();
+                }
+                return cancelled;
+            }
+        };
+
+        executor.execute(() -> {
+            // Futures cancelled before starting do not execute the query
+            if (future.isDone()) {
+                releaseConnection();
+                return;
+            }
+            try {
+                future.complete(list(useForeignKeys));
+            } catch (Throwable e) {
+                future.completeExceptionally(e);
+            }
+        });
+
+        return future;
+    }
+
     /**
      * Check {@link QueryMapper#findFirst(boolean)}. Does the same as findFirst(true)
      *
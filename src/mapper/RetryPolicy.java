@@ -0,0 +1,282 @@
+package mapper;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Savepoint;
+import java.util.*;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs database operations again when they fail because of a conflict with a concurrent transaction, which the
+ * database resolves by aborting one of them: serialization failures (SQLState 40001) and deadlocks (40P01). Any other
+ * failure is thrown at once.
+ * <pre>
+ * RetryPolicy retries = new RetryPolicy().setMaxAttempts(5);
+ *
+ * // Every attempt runs in its own unit of work, which is committed when the work succeeds
+ * Post post = retries.execute(router, () -&gt; {
+ *     Post stored = new QueryMapper&lt;Post&gt;(router).defineClass(Post.class).createSelect("id = ?")
+ *             .defineParameters(id).findFirst();
+ *     stored.setLikes(stored.getLikes() + 1);
+ *     new UpdateMapper&lt;Post&gt;(router).defineClass(Post.class).add(stored).update(false);
+ *     return stored;
+ * });
+ * </pre>
+ * A serialization failure aborts the whole transaction, so the work is restarted from the beginning, in a new one.
+ * When the work runs inside a transaction which is already open, only the failures which leave it usable can be
+ * retried: {@link RetryPolicy#execute(Connection, Work)} rolls back to a savepoint taken before the work and runs it
+ * again on deadlocks, and throws the rest of failures to the owner of the transaction.
+ * <p>
+ * Attempts are spaced by an exponential backoff with full jitter: before attempt n + 1 the thread sleeps a random time
+ * between 0 and min(maxBackoff, initialBackoff * 2^(n - 1)), so the transactions which collided do not collide again.
+ * Retries are reported to the {@link MapperListener MapperListener} of the policy.
+ *
+ * @author luastan
+ * @author CardamaS99
+ * @author danimf99
+ * @author alvrogd
+ * @author OswaldOswin1
+ * @author Marcos-marpin
+ */
+public class RetryPolicy {
+
+    /**
+     * Operation run by a retry policy
+     *
+     * @param <R> result type
+     */
+    @FunctionalInterface
+    public interface Work<R> {
+        R run() throws Exception;
+    }
+
+    private int maxAttempts = 5;
+    private long initialBackoff = TimeUnit.MILLISECONDS.toNanos(10);
+    private long maxBackoff = TimeUnit.SECONDS.toNanos(1);
+    private Set<String> retryableStates = new HashSet<>(Arrays.asList("40001", "40P01"));
+
+    // States after which the transaction can still be used once rolled back to a savepoint
+    private Set<String> savepointStates = new HashSet<>(Collections.singletonList("40P01"));
+
+    private MapperListener listener = Mapper.getDefaultListener();
+
+    /**
+     * @param maxAttempts maximum number of times the work is run, including the first one
+     * @return policy which is being built
+     */
+    public RetryPolicy setMaxAttempts(int maxAttempts) {
+        if (maxAttempts < 1) {
+            throw new IllegalArgumentException("At least one attempt is needed");
+        }
+        this.maxAttempts = maxAttempts;
+        return this;
+    }
+
+    /**
+     * @param initial maximum wait before the second attempt, doubled for every following one
+     * @param max     maximum wait before any attempt
+     * @param unit    unit of both times
+     * @return policy which is being built
+     */
+    public RetryPolicy setBackoff(long initial, long max, TimeUnit unit) {
+        this.initialBackoff = unit.toNanos(initial);
+        this.maxBackoff = unit.toNanos(max);
+        return this;
+    }
+
+    /**
+     * @param sqlStates SQLStates which make the whole work run again in a new transaction
+     * @return policy which is being built
+     */
+    public RetryPolicy setRetryableStates(Collection<String> sqlStates) {
+        this.retryableStates = new HashSet<>(sqlStates);
+        return this;
+    }
+
+    /**
+     * @param sqlStates SQLStates after which the transaction can go on once rolled back to a savepoint. Check
+     *                  {@link RetryPolicy#execute(Connection, Work)}
+     * @return policy which is being built
+     */
+    public RetryPolicy setSavepointStates(Collection<String> sqlStates) {
+        this.savepointStates = new HashSet<>(sqlStates);
+        return this;
+    }
+
+    /**
+     * @param listener listener notified of the retries
+     * @return policy which is being built
+     */
+    public RetryPolicy setListener(MapperListener listener) {
+        this.listener = listener;
+        return this;
+    }
+
+    /**
+     * Obtains the SQLState of a failure, looking into its causes
+     *
+     * @param failure exception thrown by a mapper or by JDBC
+     * @return the SQLState of the first {@link MapperException MapperException} or {@link SQLException SQLException}
+     * among the exception and its causes; null when none of them has it
+     */
+    public static String sqlState(Throwable failure) {
+        for (Throwable cause = failure; cause != null; cause = cause.getCause()) {
+            if (cause instanceof MapperException && ((MapperException) cause).getSQLState() != null) {
+                return ((MapperException) cause).getSQLState();
+            }
+            if (cause instanceof SQLException) {
+                SQLException sqlException = (SQLException) cause;
+                while (sqlException.getSQLState() == null && sqlException.getNextException() != null) {
+                    sqlException = sqlException.getNextException();
+                }
+                if (sqlException.getSQLState() != null) {
+                    return sqlException.getSQLState();
+                }
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * @param failure exception thrown by a mapper or by JDBC
+     * @return true when the work which threw it can be run again in a new transaction
+     */
+    public boolean isRetryable(Throwable failure) {
+        String sqlState = sqlState(failure);
+        return sqlState != null && retryableStates.contains(sqlState);
+    }
+
+    /**
+     * Runs a work which opens and finishes its own transactions, running it again from the beginning when it fails
+     * with a retryable error. The work must not have effects outside the database which cannot be repeated.
+     *
+     * @param work operation to be run
+     * @return the result of the first successful attempt
+     * @throws Exception the failure of the last attempt, or the first failure which is not retryable
+     */
+    public <R> R execute(Work<R> work) throws Exception {
+        for (int attempt = 1; ; attempt++) {
+            try {
+                return work.run();
+            } catch (Exception e) {
+                if (!isRetryable(e)) {
+                    throw e;
+                }
+                backoff(e, attempt);
+            }
+        }
+    }
+
+    /**
+     * Runs a work inside a unit of work of a router, committing it when the work succeeds. When it fails with a
+     * retryable error, the unit is rolled back and the work runs again in a new one.
+     * <p>
+     * When the thread is already inside a unit of work of the router, the work joins it and runs only once, since
+     * the failure aborted a transaction owned by the caller: retrying is up to whoever opened it.
+     *
+     * @param router router of the connections used by the mappers of the work
+     * @param work   operation to be run
+     * @return the result of the first successful attempt
+     * @throws Exception the failure of the last attempt, or the first failure which is not retryable
+     */
+    public <R> R execute(ConnectionRouter router, Work<R> work) throws Exception {
+        if (router.inUnitOfWork()) {
+            return work.run();
+        }
+
+        return execute(() -> {
+            try (ConnectionRouter.UnitOfWork unit = router.begin()) {
+                R result = work.run();
+                unit.commit();
+                return result;
+            } catch (SQLException e) {
+                // Failures of the commit carry the SQLState of the conflict too
+                throw MapperException.of(e);
+            }
+        });
+    }
+
+    /**
+     * Runs a work inside the transaction already open on a connection. A savepoint is taken before every attempt;
+     * when the work fails with one of the savepoint states (deadlocks, by default) the transaction is rolled back to
+     * it and the work runs again. Failures which abort the whole transaction, such as serialization failures, are
+     * thrown, as only the owner of the transaction can restart it.
+     * <p>
+     * When the connection is in auto-commit mode there is no transaction to keep, and this does the same as
+     * {@link RetryPolicy#execute(Work)}.
+     *
+     * @param connection connection used by the mappers of the work
+     * @param work       operation to be run
+     * @return the result of the first successful attempt
+     * @throws Exception the failure of the last attempt, or the first failure which cannot be retried in place
+     */
+    public <R> R execute(Connection connection, Work<R> work) throws Exception {
+        try {
+            if (connection.getAutoCommit()) {
+                return execute(work);
+            }
+        } catch (SQLException e) {
+            throw MapperException.of(e);
+        }
+
+        for (int attempt = 1; ; attempt++) {
+            Savepoint savepoint;
+            try {
+                savepoint = connection.setSavepoint();
+            } catch (SQLException e) {
+                throw MapperException.of(e);
+            }
+
+            try {
+                R result = work.run();
+                connection.releaseSavepoint(savepoint);
+                return result;
+            } catch (Exception e) {
+                String sqlState = sqlState(e);
+                if (sqlState == null || !savepointStates.contains(sqlState) || !retryableStates.contains(sqlState)) {
+                    throw e;
+                }
+
+                try {
+                    connection.rollback(savepoint);
+                } catch (SQLException rollback) {
+                    e.addSuppressed(rollback);
+                    throw e;
+                }
+                backoff(e, attempt);
+            }
+        }
+    }
+
+    /**
+     * Waits before the next attempt, or throws the failure when there are no attempts left
+     */
+    private void backoff(Exception failure, int attempt) throws Exception {
+        String sqlState = sqlState(failure);
+
+        if (attempt >= maxAttempts) {
+            listener.retriesExhausted(sqlState, attempt);
+            throw failure;
+        }
+
+        // min(maxBackoff, initialBackoff * 2^(attempt - 1)), without overflowing
+        long ceiling = initialBackoff;
+        for (int i = 1; i < attempt && ceiling < maxBackoff; i++) {
+            ceiling <<= 1;
+        }
+        ceiling = Math.min(ceiling, maxBackoff);
+        long wait = ceiling > 0 ? ThreadLocalRandom.current().nextLong(ceiling + 1) : 0;
+
+        listener.operationRetried(sqlState, attempt, wait);
+
+        try {
+            TimeUnit.NANOSECONDS.sleep(wait);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            failure.addSuppressed(e);
+            throw failure;
+        }
+    }
+}
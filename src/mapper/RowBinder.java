@@ -0,0 +1,383 @@
+package mapper;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Modifier;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+
+/**
+ * Maps the rows of a result set into instances of a mapped class. Everything that can be resolved beforehand (the
+ * mapped fields, the position of their columns in the result set and the way of creating the instances) is resolved
+ * once per mapped class and result shape, and reused by every query returning the same columns.
+ * <p>
+ * Rows are mapped in two steps: {@link RowBinder#read(ResultSet)} extracts the values of the mapped fields (the
+ * "slots" of the row), and {@link RowBinder#materialize(Object[])} creates the instance from them. Instances are
+ * created through the public no-arg constructor and their fields get assigned; when there is no such constructor,
+ * the canonical constructor (one parameter per field, in declaration order, as in Java records) is used instead,
+ * so immutable classes can be mapped too.
+ *
+ * @param <T> Mapped class type
+ * @author luastan
+ * @author CardamaS99
+ * @author danimf99
+ * @author alvrogd
+ * @author OswaldOswin1
+ * @author Marcos-marpin
+ */
+public final class RowBinder<T> {
+
+    /**
+     * Value of the slots whose column is not present in the result set, or whose foreign key has not been loaded.
+     * Their fields keep the value given by the constructor.
+     */
+    public static final Object ABSENT = new Object();
+
+    // Binders indexed by mapped class and column names of the result set
+    private static final ConcurrentHashMap<Class<?>, ConcurrentHashMap<List<String>, RowBinder<?>>> BINDERS =
+            new ConcurrentHashMap<>();
+
+    private final Class<T> clase;
+    private final List<String> columns;
+    private final Field[] fields;
+
+    // Position of the column of each field in the result set, starting from 1; 0 when it is not present
+    private final int[] columnIndexes;
+
+    // For foreign keys declared with fKeys: positions of the local columns and names of the referenced columns
+    private final int[][] fkIndexes;
+    private final String[][] fkTargets;
+
+    // Referenced class of each foreign key field; null for the rest of fields
+    private final Class<?>[] foreignClasses;
+
+    private final Constructor<T> noArgsConstructor;
+    private final Constructor<T> canonicalConstructor;
+
+    private RowBinder(Class<T> clase, List<String> columns) throws Exception {
+        this.clase = clase;
+        this.columns = columns;
+
+        List<Field> mapped = new ArrayList<>();
+        for (Field field : clase.getDeclaredFields()) {
+            if (field.isAnnotationPresent(MapperColumn.class) && !Modifier.isStatic(field.getModifiers())) {
+                field.setAccessible(true);
+                mapped.add(field);
+            }
+        }
+
+        this.fields = mapped.toArray(new Field[0]);
+        this.columnIndexes = new int[fields.length];
+        this.fkIndexes = new int[fields.length][];
+        this.fkTargets = new String[fields.length][];
+        this.foreignClasses = new Class<?>[fields.length];
+
+        for (int i = 0; i < fields.length; i++) {
+            MapperColumn annotation = fields[i].getAnnotation(MapperColumn.class);
+            columnIndexes[i] = columns.indexOf(Mapper.extractColumnName(fields[i])) + 1;
+
+            // Checks if the Field class has the MapperTable anotation. This means that it's a foreign key
+            if (annotation.targetClass() != Object.class &&
+                    annotation.targetClass().isAnnotationPresent(MapperTable.class)) {
+                foreignClasses[i] = annotation.targetClass();
+
+                if (!annotation.fKeys().equals("")) {
+                    List<Integer> indexes = new ArrayList<>();
+                    List<String> targets = new ArrayList<>();
+                    Matcher matcher = Mapper.regexFKeys.matcher(annotation.fKeys());
+
+                    while (matcher.find()) {
+                        indexes.add(columns.indexOf(matcher.group(1)) + 1);
+                        targets.add(matcher.group(2));
+                    }
+
+                    fkIndexes[i] = indexes.stream().mapToInt(Integer::intValue).toArray();
+                    fkTargets[i] = targets.toArray(new String[0]);
+                }
+            }
+        }
+
+        this.noArgsConstructor = findNoArgsConstructor(clase);
+        this.canonicalConstructor = noArgsConstructor == null ? findCanonicalConstructor(clase, fields) : null;
+
+        if (noArgsConstructor == null && canonicalConstructor == null) {
+            throw new Exception(clase.getName() + " needs a public no-arg constructor or a canonical constructor " +
+                    "with one parameter per mapped field");
+        }
+    }
+
+    /**
+     * Obtains the binder of a mapped class for a result shape, resolving it the first time it is needed
+     *
+     * @param clase   mapped class
+     * @param columns column names of the result set, in order
+     * @return the binder
+     */
+    @SuppressWarnings("unchecked")
+    public static <T> RowBinder<T> of(Class<T> clase, List<String> columns) throws Exception {
+        ConcurrentHashMap<List<String>, RowBinder<?>> shapes =
+                BINDERS.computeIfAbsent(clase, k -> new ConcurrentHashMap<>());
+        RowBinder<?> binder = shapes.get(columns);
+
+        if (binder == null) {
+            binder = new RowBinder<>(clase, columns);
+            RowBinder<?> previous = shapes.putIfAbsent(columns, binder);
+            binder = previous != null ? previous : binder;
+        }
+
+        return (RowBinder<T>) binder;
+    }
+
+    /**
+     * Obtains the binder of a mapped class for the shape of a result set
+     *
+     * @param clase mapped class
+     * @param set   result set whose rows will be mapped
+     * @return the binder
+     */
+    public static <T> RowBinder<T> of(Class<T> clase, ResultSet set) throws Exception {
+        return of(clase, columnsOf(set));
+    }
+
+    /**
+     * @param set result set
+     * @return the column names of the result set, in order
+     */
+    public static List<String> columnsOf(ResultSet set) throws SQLException {
+        ResultSetMetaData metaData = set.getMetaData();
+        List<String> columns = new ArrayList<>(metaData.getColumnCount());
+
+        for (int i = 1; i <= metaData.getColumnCount(); i++) {
+            columns.add(metaData.getColumnName(i));
+        }
+
+        return columns;
+    }
+
+    public Class<T> getMappedClass() {
+        return clase;
+    }
+
+    public List<String> getColumns() {
+        return columns;
+    }
+
+    /**
+     * @return number of slots of each row, which is the number of mapped fields
+     */
+    public int size() {
+        return fields.length;
+    }
+
+    public Field getField(int slot) {
+        return fields[slot];
+    }
+
+    /**
+     * @return true when some of the mapped fields are foreign keys
+     */
+    public boolean hasForeignKeys() {
+        return Arrays.stream(foreignClasses).anyMatch(Objects::nonNull);
+    }
+
+    /**
+     * @param slot slot index
+     * @return the referenced class when the slot is a foreign key; null otherwise
+     */
+    public Class<?> getForeignClass(int slot) {
+        return foreignClasses[slot];
+    }
+
+    /**
+     * Extracts the values of the current row of a result set. Each slot contains:
+     * <ul>
+     * <li>{@link RowBinder#ABSENT ABSENT} when its columns are not present in the result set</li>
+     * <li>for foreign keys declared with fKeys, a Map with the values of the referenced columns indexed by
+     * their name</li>
+     * <li>the value of the column otherwise (for foreign keys, the value of the referenced primary key)</li>
+     * </ul>
+     *
+     * @param set result set positioned on the row
+     * @return the slots of the row
+     */
+    public Object[] read(ResultSet set) throws SQLException {
+        return bind(readColumns(set));
+    }
+
+    /**
+     * Extracts the raw values of the current row of a result set, without any conversion. Along with
+     * {@link RowBinder#bind(Object[])}, it allows reading the rows on one thread and mapping them on others.
+     *
+     * @param set result set positioned on the row
+     * @return the value of each column of the result set, in order
+     */
+    public Object[] readColumns(ResultSet set) throws SQLException {
+        Object[] values = new Object[columns.size()];
+
+        for (int i = 0; i < values.length; i++) {
+            values[i] = set.getObject(i + 1);
+        }
+
+        return values;
+    }
+
+    /**
+     * Obtains the slots of a row from its raw values. Check {@link RowBinder#read(ResultSet)}
+     *
+     * @param values value of each column of the result set, as returned by {@link RowBinder#readColumns(ResultSet)}
+     * @return the slots of the row
+     */
+    public Object[] bind(Object[] values) {
+        Object[] slots = new Object[fields.length];
+
+        for (int i = 0; i < fields.length; i++) {
+            if (fkIndexes[i] != null) {
+                HashMap<String, Object> fkValues = new HashMap<>();
+                for (int j = 0; j < fkIndexes[i].length && fkValues != null; j++) {
+                    if (fkIndexes[i][j] == 0) {
+                        fkValues = null;
+                    } else {
+                        fkValues.put(fkTargets[i][j], values[fkIndexes[i][j] - 1]);
+                    }
+                }
+                slots[i] = fkValues == null ? ABSENT : fkValues;
+            } else if (columnIndexes[i] == 0) {
+                slots[i] = ABSENT;
+            } else if (foreignClasses[i] != null) {
+                slots[i] = values[columnIndexes[i] - 1];
+            } else {
+                slots[i] = Mapper.convert(values[columnIndexes[i] - 1], fields[i].getType());
+            }
+        }
+
+        return slots;
+    }
+
+    /**
+     * Creates an instance of the mapped class from the slots of a row. At this point foreign key slots must contain
+     * the referenced object, or {@link RowBinder#ABSENT ABSENT}.
+     *
+     * @param slots slots of the row
+     * @return the mapped instance
+     */
+    public T materialize(Object[] slots) throws Exception {
+        try {
+            if (noArgsConstructor != null) {
+                T element = noArgsConstructor.newInstance();
+                for (int i = 0; i < fields.length; i++) {
+                    if (slots[i] != ABSENT) {
+                        fields[i].set(element, slots[i]);
+                    }
+                }
+                return element;
+            }
+
+            Object[] arguments = new Object[fields.length];
+            for (int i = 0; i < fields.length; i++) {
+                arguments[i] = slots[i] == ABSENT || slots[i] == null ?
+                        defaultValue(fields[i].getType()) : slots[i];
+            }
+            return canonicalConstructor.newInstance(arguments);
+        } catch (IllegalAccessException | InstantiationException | InvocationTargetException e) {
+            throw MapperException.of(e);
+        }
+    }
+
+    /**
+     * Codec writing the mapped fields of the instances, so they can be kept by a {@link SpillableList SpillableList}.
+     * Only the values supported by {@link ValueCodec ValueCodec} can be written, which leaves out the fields holding
+     * the objects referenced by foreign keys once they have been loaded.
+     *
+     * @return the codec of the mapped class
+     */
+    public SpillableList.Codec<T> codec() {
+        return new SpillableList.Codec<T>() {
+            @Override
+            public void write(DataOutput output, T element) throws IOException {
+                try {
+                    for (Field field : fields) {
+                        Object value = field.get(element);
+                        if (!ValueCodec.isSupported(value)) {
+                            throw new IOException("Field " + field.getName() + " of " + clase.getName() +
+                                    " holds a " + value.getClass().getName() + ", which cannot be spilled");
+                        }
+                        ValueCodec.write(output, value);
+                    }
+                } catch (IllegalAccessException e) {
+                    throw new IOException(e.getMessage());
+                }
+            }
+
+            @Override
+            public T read(DataInput input) throws Exception {
+                Object[] slots = new Object[fields.length];
+                for (int i = 0; i < fields.length; i++) {
+                    slots[i] = ValueCodec.read(input);
+                }
+                return materialize(slots);
+            }
+        };
+    }
+
+    private static <T> Constructor<T> findNoArgsConstructor(Class<T> clase) {
+        try {
+            return clase.getConstructor();
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Finds the constructor whose parameters match the mapped fields in declaration order
+     */
+    @SuppressWarnings("unchecked")
+    private static <T> Constructor<T> findCanonicalConstructor(Class<T> clase, Field[] fields) {
+        for (Constructor<?> constructor : clase.getDeclaredConstructors()) {
+            Class<?>[] types = constructor.getParameterTypes();
+
+            if (types.length == fields.length) {
+                boolean matches = true;
+                for (int i = 0; i < types.length && matches; i++) {
+                    matches = types[i] == fields[i].getType();
+                }
+
+                if (matches) {
+                    constructor.setAccessible(true);
+                    return (Constructor<T>) constructor;
+                }
+            }
+        }
+
+        return null;
+    }
+
+    private static Object defaultValue(Class<?> type) {
+        if (!type.isPrimitive()) {
+            return null;
+        } else if (type == boolean.class) {
+            return false;
+        } else if (type == char.class) {
+            return '\0';
+        } else if (type == long.class) {
+            return 0L;
+        } else if (type == float.class) {
+            return 0f;
+        } else if (type == double.class) {
+            return 0d;
+        } else if (type == byte.class) {
+            return (byte) 0;
+        } else if (type == short.class) {
+            return (short) 0;
+        }
+
+        return 0;
+    }
+}
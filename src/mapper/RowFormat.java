@@ -0,0 +1,366 @@
+package mapper;
+
+import java.io.*;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.sql.Time;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+
+/**
+ * File formats of the rows exported by {@link QueryMapper#export(WritableByteChannel, RowFormat)} and imported by
+ * {@link InsertionMapper#importRows(ReadableByteChannel, RowFormat, String)}. Both start with the column names,
+ * followed by one record per row.
+ *
+ * @author luastan
+ * @author CardamaS99
+ * @author danimf99
+ * @author alvrogd
+ * @author OswaldOswin1
+ * @author Marcos-marpin
+ */
+public enum RowFormat {
+
+    /**
+     * RFC 4180 comma separated values, encoded in UTF-8. The first line holds the column names. Null values are
+     * written as empty fields and empty Strings as "", binary values are encoded in Base64, and the rest of values
+     * are written through their toString method.
+     * <p>
+     * CSV values carry no type, so they are converted back according to the column types of the destination table.
+     */
+    CSV {
+        @Override
+        void writeHeader(DataOutputStream output, List<String> columns) throws IOException {
+            writeRow(output, columns.toArray());
+        }
+
+        @Override
+        void writeRow(DataOutputStream output, Object[] values) throws IOException {
+            for (int i = 0; i < values.length; i++) {
+                if (i > 0) {
+                    output.write(',');
+                }
+
+                Object value = values[i];
+                if (value != null) {
+                    String text = value instanceof byte[] ?
+                            Base64.getEncoder().encodeToString((byte[]) value) : value.toString();
+
+                    if (text.isEmpty() || text.indexOf(',') >= 0 || text.indexOf('"') >= 0 ||
+                            text.indexOf('\n') >= 0 || text.indexOf('\r') >= 0) {
+                        text = '"' + text.replace("\"", "\"\"") + '"';
+                    }
+                    output.write(text.getBytes(StandardCharsets.UTF_8));
+                }
+            }
+            output.write('\r');
+            output.write('\n');
+        }
+
+        @Override
+        void writeEnd(DataOutputStream output) {
+        }
+
+        @Override
+        List<String> readHeader(DataInputStream input) throws IOException {
+            List<String> columns = new ArrayList<>();
+            Object[] names = readRow(input, -1);
+
+            if (names == null) {
+                throw new IOException("Missing CSV header");
+            }
+            for (Object name : names) {
+                columns.add((String) name);
+            }
+
+            return columns;
+        }
+
+        @Override
+        Object[] readRow(DataInputStream input, int columns) throws IOException {
+            List<Object> values = new ArrayList<>();
+            ByteArrayOutputStream field = new ByteArrayOutputStream();
+            boolean quoted = false;
+            boolean wasQuoted = false;
+            int next = input.read();
+
+            if (next < 0) {
+                return null;
+            }
+
+            // Delimiters are ASCII, so the fields are split by bytes and decoded from UTF-8 once complete
+            while (true) {
+                if (quoted) {
+                    if (next < 0) {
+                        throw new IOException("Unterminated quoted CSV field");
+                    } else if (next == '"') {
+                        next = input.read();
+                        if (next != '"') {
+                            quoted = false;
+                            continue;
+                        }
+                    }
+                    field.write(next);
+                } else if (next == '"') {
+                    quoted = true;
+                    wasQuoted = true;
+                } else if (next == '\r') {
+                    // Line breaks are \r\n or \n, so a \r outside quotes is skipped
+                } else if (next == ',' || next == '\n' || next < 0) {
+                    values.add(field.size() == 0 && !wasQuoted ? null : new String(field.toByteArray(),
+                            StandardCharsets.UTF_8));
+                    field.reset();
+                    wasQuoted = false;
+
+                    if (next != ',') {
+                        break;
+                    }
+                } else {
+                    field.write(next);
+                }
+                next = input.read();
+            }
+
+            if (columns >= 0 && values.size() != columns) {
+                throw new IOException("CSV row with " + values.size() + " fields where " + columns +
+                        " were expected");
+            }
+
+            return values.toArray();
+        }
+    },
+
+    /**
+     * Compact binary format: a magic number and the column names, followed by the values of each row encoded with
+     * {@link ValueCodec ValueCodec}, which keeps their types. Every row is preceded by a 1 byte, and the file ends
+     * with a 0 byte.
+     */
+    BINARY {
+        private static final int MAGIC = 0x4D505231;
+
+        @Override
+        void writeHeader(DataOutputStream output, List<String> columns) throws IOException {
+            output.writeInt(MAGIC);
+            output.writeInt(columns.size());
+            for (String column : columns) {
+                ValueCodec.write(output, column);
+            }
+        }
+
+        @Override
+        void writeRow(DataOutputStream output, Object[] values) throws IOException {
+            output.writeByte(1);
+            for (Object value : values) {
+                ValueCodec.write(output, value);
+            }
+        }
+
+        @Override
+        void writeEnd(DataOutputStream output) throws IOException {
+            output.writeByte(0);
+        }
+
+        @Override
+        List<String> readHeader(DataInputStream input) throws IOException {
+            if (input.readInt() != MAGIC) {
+                throw new IOException("Not a binary row file");
+            }
+
+            // The count is not trusted to size the list, as the file may be corrupt
+            int count = input.readInt();
+            if (count < 0) {
+                throw new IOException("Invalid column count: " + count);
+            }
+            List<String> columns = new ArrayList<>();
+            for (int i = 0; i < count; i++) {
+                Object column = ValueCodec.read(input);
+                if (!(column instanceof String)) {
+                    throw new IOException("Invalid column name: " + column);
+                }
+                columns.add((String) column);
+            }
+
+            return columns;
+        }
+
+        @Override
+        Object[] readRow(DataInputStream input, int columns) throws IOException {
+            if (input.readByte() == 0) {
+                return null;
+            }
+
+            Object[] values = new Object[columns];
+            for (int i = 0; i < columns; i++) {
+                values[i] = ValueCodec.read(input);
+            }
+
+            return values;
+        }
+    };
+
+    // Size of the direct buffers used to write and read the channels
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    // Direct buffers are expensive to allocate, so every thread reuses its own ones
+    private static final ThreadLocal<ByteBuffer> OUTPUT_BUFFERS =
+            ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(BUFFER_SIZE));
+    private static final ThreadLocal<ByteBuffer> INPUT_BUFFERS =
+            ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(BUFFER_SIZE));
+
+    abstract void writeHeader(DataOutputStream output, List<String> columns) throws IOException;
+
+    abstract void writeRow(DataOutputStream output, Object[] values) throws IOException;
+
+    abstract void writeEnd(DataOutputStream output) throws IOException;
+
+    abstract List<String> readHeader(DataInputStream input) throws IOException;
+
+    /**
+     * @param input   source of the rows
+     * @param columns number of columns of each row
+     * @return the values of the next row; null when there are no more rows
+     */
+    abstract Object[] readRow(DataInputStream input, int columns) throws IOException;
+
+    /**
+     * Creates a stream which writes to a channel through the direct buffer of the current thread. Closing the stream
+     * flushes it, but does not close the channel.
+     */
+    static DataOutputStream output(WritableByteChannel channel) {
+        ByteBuffer buffer = OUTPUT_BUFFERS.get();
+        buffer.clear();
+
+        return new DataOutputStream(new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                if (!buffer.hasRemaining()) {
+                    drain();
+                }
+                buffer.put((byte) b);
+            }
+
+            @Override
+            public void write(byte[] bytes, int offset, int length) throws IOException {
+                while (length > 0) {
+                    if (!buffer.hasRemaining()) {
+                        drain();
+                    }
+                    int chunk = Math.min(length, buffer.remaining());
+                    buffer.put(bytes, offset, chunk);
+                    offset += chunk;
+                    length -= chunk;
+                }
+            }
+
+            @Override
+            public void flush() throws IOException {
+                drain();
+            }
+
+            @Override
+            public void close() throws IOException {
+                drain();
+            }
+
+            private void drain() throws IOException {
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+                buffer.clear();
+            }
+        });
+    }
+
+    /**
+     * Creates a stream which reads from a channel through the direct buffer of the current thread
+     */
+    static DataInputStream input(ReadableByteChannel channel) {
+        ByteBuffer buffer = INPUT_BUFFERS.get();
+        buffer.clear().flip();
+
+        return new DataInputStream(new InputStream() {
+            @Override
+            public int read() throws IOException {
+                return fill() ? buffer.get() & 0xFF : -1;
+            }
+
+            @Override
+            public int read(byte[] bytes, int offset, int length) throws IOException {
+                if (length == 0) {
+                    return 0;
+                }
+                if (!fill()) {
+                    return -1;
+                }
+                length = Math.min(length, buffer.remaining());
+                buffer.get(bytes, offset, length);
+                return length;
+            }
+
+            private boolean fill() throws IOException {
+                while (!buffer.hasRemaining()) {
+                    buffer.clear();
+                    int read = channel.read(buffer);
+                    buffer.flip();
+                    if (read < 0) {
+                        return false;
+                    }
+                }
+                return true;
+            }
+        });
+    }
+
+    /**
+     * Converts a CSV value according to the type of its column
+     *
+     * @param text    value read from the file
+     * @param sqlType column type, from {@link Types}
+     * @return the converted value
+     */
+    static Object parse(String text, int sqlType) {
+        if (text == null) {
+            return null;
+        }
+
+        switch (sqlType) {
+            case Types.TINYINT:
+            case Types.SMALLINT:
+            case Types.INTEGER:
+                return Integer.valueOf(text);
+            case Types.BIGINT:
+                return Long.valueOf(text);
+            case Types.REAL:
+                return Float.valueOf(text);
+            case Types.FLOAT:
+            case Types.DOUBLE:
+                return Double.valueOf(text);
+            case Types.DECIMAL:
+            case Types.NUMERIC:
+                return new BigDecimal(text);
+            case Types.BIT:
+            case Types.BOOLEAN:
+                return text.equals("t") || text.equals("1") || Boolean.parseBoolean(text);
+            case Types.DATE:
+                return java.sql.Date.valueOf(text);
+            case Types.TIME:
+                return Time.valueOf(text);
+            case Types.TIMESTAMP:
+                return Timestamp.valueOf(text);
+            case Types.BINARY:
+            case Types.VARBINARY:
+            case Types.LONGVARBINARY:
+            case Types.BLOB:
+                return Base64.getDecoder().decode(text);
+            default:
+                return text;
+        }
+    }
+}
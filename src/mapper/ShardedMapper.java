@@ -0,0 +1,290 @@
+package mapper;
+
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Spreads the rows of the mapped classes between several databases (shards), placing each object in the shard chosen
+ * by a shard function over its atomic primary key values. Every shard is reached through its own
+ * {@link ConnectionRouter ConnectionRouter}, so shards can have their own replicas.
+ * <p>
+ * Insertions, updates, deletions, merges and primary key lookups are sent to the shard owning each object, as are the
+ * foreign keys loaded by the queries, which are looked up in the shard owning the referenced object. Queries over
+ * other columns are sent to every shard in parallel, and their results gathered:
+ * <pre>
+ * ShardedMapper&lt;Post&gt; posts = new ShardedMapper&lt;Post&gt;(Arrays.asList(shard0, shard1, shard2))
+ *         .defineClass(Post.class);
+ *
+ * posts.insert(Arrays.asList(post1, post2));
+ * Post post = posts.findByPk(1);
+ * List&lt;Post&gt; recent = posts.query("publicationDate &gt; ?", Comparator.comparing(Post::getPublicationDate),
+ *         yesterday);
+ * </pre>
+ * Every shard must have the same tables, and objects need their primary keys to be known before being inserted, so
+ * keys generated by the database cannot be used to choose the shard.
+ *
+ * @param <T> Mapped class type
+ * @author luastan
+ * @author CardamaS99
+ * @author danimf99
+ * @author alvrogd
+ * @author OswaldOswin1
+ * @author Marcos-marpin
+ */
+public class ShardedMapper<T> {
+
+    /**
+     * Chooses the shard owning a primary key
+     */
+    public interface ShardFunction {
+        /**
+         * @param key    atomic primary key values, sorted by column name; integer values are given as Long
+         * @param shards number of shards
+         * @return the index of the shard, between 0 and shards - 1
+         */
+        int shardOf(List<Object> key, int shards);
+    }
+
+    /**
+     * Shard function based on the hash code of the primary key values
+     */
+    public static final ShardFunction HASH = (key, shards) -> Math.floorMod(key.hashCode(), shards);
+
+    // Pool used when no executor is given. Its threads block on the databases, so they are not taken from the
+    // common fork-join pool
+    private static final ExecutorService SCATTER_POOL = Executors.newCachedThreadPool(task -> {
+        Thread thread = new Thread(task, "mapper-scatter");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final List<ConnectionRouter> shards;
+    private final ShardFunction function;
+    private final Executor executor;
+    private Class<? extends T> mappedClass;
+
+    /**
+     * @param shards   routers of the shards; their order must not change, as it identifies each shard
+     * @param function shard function
+     * @param executor executor running the queries sent to every shard
+     */
+    public ShardedMapper(List<ConnectionRouter> shards, ShardFunction function, Executor executor) {
+        this.shards = new ArrayList<>(shards);
+        this.function = function;
+        this.executor = executor;
+    }
+
+    /**
+     * Creates a sharded mapper which spreads the objects by the hash code of their primary keys
+     *
+     * @param shards routers of the shards; their order must not change, as it identifies each shard
+     */
+    public ShardedMapper(List<ConnectionRouter> shards) {
+        this(shards, HASH, SCATTER_POOL);
+    }
+
+    /**
+     * Defines the class of the objects handled by the mapper
+     *
+     * @param clase Class to be mapped
+     * @return ShardedMapper instance
+     */
+    public ShardedMapper<T> defineClass(Class<? extends T> clase) {
+        this.mappedClass = clase;
+        return this;
+    }
+
+    public List<ConnectionRouter> getShards() {
+        return Collections.unmodifiableList(shards);
+    }
+
+    /**
+     * Obtains the router of the shard owning a primary key
+     *
+     * @param atomicPks atomic primary key values indexed by their column name
+     * @return the router of the shard
+     */
+    public ConnectionRouter routerOf(Map<String, Object> atomicPks) {
+        List<Object> key = new ArrayList<>(atomicPks.size());
+
+        for (String column : new TreeSet<>(atomicPks.keySet())) {
+            Object value = atomicPks.get(column);
+            if (value == null) {
+                throw new IllegalArgumentException("Primary key " + column + " is needed to choose the shard");
+            }
+
+            // The same key may be read as different integer types from different columns
+            key.add(value instanceof Integer || value instanceof Short || value instanceof Byte ?
+                    ((Number) value).longValue() : value);
+        }
+
+        return shards.get(function.shardOf(key, shards.size()));
+    }
+
+    /**
+     * Inserts objects into the shards owning them, with one batch per shard
+     *
+     * @param objects objects to be inserted
+     */
+    public void insert(Collection<? extends T> objects) throws Exception {
+        for (Map.Entry<ConnectionRouter, List<T>> shard : byShard(objects).entrySet()) {
+            InsertionMapper<T> mapper = shard(new InsertionMapper<>(shard.getKey()));
+            for (T object : shard.getValue()) {
+                mapper.add(object);
+            }
+            mapper.defineClass(mappedClass).insert();
+        }
+    }
+
+    /**
+     * Updates objects in the shards owning them. Check {@link UpdateMapper#update(boolean)}
+     *
+     * @param objects         objects to be updated
+     * @param allowNullValues when false, null attributes are not updated
+     */
+    public void update(Collection<? extends T> objects, boolean allowNullValues) throws Exception {
+        for (Map.Entry<ConnectionRouter, List<T>> shard : byShard(objects).entrySet()) {
+            UpdateMapper<T> mapper = shard(new UpdateMapper<>(shard.getKey()));
+            for (T object : shard.getValue()) {
+                mapper.add(object);
+            }
+            mapper.defineClass(mappedClass).update(allowNullValues);
+        }
+    }
+
+    /**
+     * Deletes objects from the shards owning them
+     *
+     * @param objects objects to be deleted
+     */
+    public void delete(Collection<? extends T> objects) throws Exception {
+        for (Map.Entry<ConnectionRouter, List<T>> shard : byShard(objects).entrySet()) {
+            DeleteMapper<T> mapper = shard(new DeleteMapper<>(shard.getKey()));
+            for (T object : shard.getValue()) {
+                mapper.add(object);
+            }
+            mapper.defineClass(mappedClass).delete();
+        }
+    }
+
+    /**
+     * Saves objects in the shards owning them. Check {@link MergeMapper#merge()}
+     *
+     * @param objects objects to be saved
+     */
+    public void merge(Collection<? extends T> objects) throws Exception {
+        for (Map.Entry<ConnectionRouter, List<T>> shard : byShard(objects).entrySet()) {
+            MergeMapper<T> mapper = shard(new MergeMapper<>(shard.getKey()));
+            for (T object : shard.getValue()) {
+                mapper.add(object);
+            }
+            mapper.defineClass(mappedClass).merge();
+        }
+    }
+
+    /**
+     * Obtains an object by its primary key from the shard owning it, loading its foreign keys
+     *
+     * @param pkValues atomic primary key values, in the declaration order of their fields
+     * @return the object; null when it does not exist
+     */
+    public T findByPk(Object... pkValues) throws Exception {
+        List<String> pkColumns = EntityMetadata.of(mappedClass).getPkColumns();
+        HashMap<String, Object> atomicPks = new HashMap<>();
+
+        if (pkValues.length != pkColumns.size()) {
+            throw new Exception(mappedClass.getName() + " has " + pkColumns.size() + " primary keys");
+        }
+        for (int i = 0; i < pkValues.length; i++) {
+            atomicPks.put(pkColumns.get(i), pkValues[i]);
+        }
+
+        return shard(new QueryMapper<T>(routerOf(atomicPks))).defineClass(mappedClass)
+                .createQuery(SqlTemplates.selectByPk(mappedClass)).defineParameters(pkValues).findFirst();
+    }
+
+    /**
+     * Queries every shard in parallel over the table of the mapped class, gathering the results
+     *
+     * @param where          condition of the query, which may contain ? parameters; null to retrieve every row
+     * @param order          order of the gathered results; null keeps them grouped by shard, in shard order
+     * @param useForeignKeys Same atribute as in {@link QueryMapper#list(boolean)}
+     * @param parameters     parameters of the condition
+     * @return the results of every shard
+     */
+    public List<T> query(String where, Comparator<? super T> order, boolean useForeignKeys, List<Object> parameters)
+            throws Exception {
+        List<CompletableFuture<List<T>>> results = new ArrayList<>();
+        List<QueryMapper<T>> mappers = new ArrayList<>();
+
+        for (ConnectionRouter router : shards) {
+            QueryMapper<T> mapper = shard(new QueryMapper<T>(router));
+            mappers.add(mapper);
+            results.add(CompletableFuture.supplyAsync(() -> {
+                try {
+                    return mapper.defineClass(mappedClass).createSelect(where).defineParametersList(parameters)
+                            .list(useForeignKeys);
+                } catch (Exception e) {
+                    throw new CompletionException(e);
+                }
+            }, executor));
+        }
+
+        List<T> gathered = new ArrayList<>();
+        try {
+            for (CompletableFuture<List<T>> result : results) {
+                gathered.addAll(result.join());
+            }
+        } catch (CompletionException e) {
+            // The results of the rest of shards are not needed anymore, so their queries are stopped
+            results.forEach(result -> result.cancel(true));
+            mappers.forEach(QueryMapper::cancel);
+            throw MapperException.of(e.getCause() instanceof Exception ? (Exception) e.getCause() : e);
+        }
+
+        // The order is given by a comparator, which the databases cannot apply, so the gathered results are sorted
+        if (order != null) {
+            gathered.sort(order);
+        }
+
+        return gathered;
+    }
+
+    /**
+     * Does the same as {@link ShardedMapper#query(String, Comparator, boolean, List)} loading the foreign keys
+     *
+     * @param where      condition of the query, which may contain ? parameters; null to retrieve every row
+     * @param order      order of the gathered results; null keeps them grouped by shard, in shard order
+     * @param parameters parameters of the condition
+     * @return the results of every shard
+     */
+    public List<T> query(String where, Comparator<? super T> order, Object... parameters) throws Exception {
+        return query(where, order, true, Arrays.asList(parameters));
+    }
+
+    /**
+     * Groups objects by the router of the shard owning them, keeping their order
+     */
+    private Map<ConnectionRouter, List<T>> byShard(Collection<? extends T> objects) throws Exception {
+        LinkedHashMap<ConnectionRouter, List<T>> grouped = new LinkedHashMap<>();
+        QueryMapper<T> keys = new QueryMapper<>(shards.get(0));
+
+        for (T object : objects) {
+            grouped.computeIfAbsent(routerOf(keys.pkValues(object)), k -> new ArrayList<>()).add(object);
+        }
+
+        return grouped;
+    }
+
+    /**
+     * Makes a mapper look up foreign keys in the shards owning them
+     */
+    private <M extends Mapper<?>> M shard(M mapper) {
+        mapper.shards = this;
+        return mapper;
+    }
+}
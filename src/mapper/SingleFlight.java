@@ -0,0 +1,97 @@
+package mapper;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Coalesces concurrent calls which would obtain the same value: the first caller of a key runs the call, and the
+ * callers of the same key which arrive while it is running wait for its result instead of running the call again.
+ * Once the call finishes its key is forgotten, so values are never cached: later callers run the call again.
+ * <p>
+ * Keys are kept in a {@link ConcurrentHashMap ConcurrentHashMap}, so calls over different keys do not contend for a
+ * common lock.
+ *
+ * @param <K> Key type
+ * @param <V> Value type
+ * @author luastan
+ * @author CardamaS99
+ * @author danimf99
+ * @author alvrogd
+ * @author OswaldOswin1
+ * @author Marcos-marpin
+ */
+final class SingleFlight<K, V> {
+
+    /**
+     * Call whose result is shared
+     *
+     * @param <V> Value type
+     */
+    @FunctionalInterface
+    interface Call<V> {
+        V call() throws Exception;
+    }
+
+    // Calls currently running, indexed by their key
+    private final ConcurrentHashMap<K, CompletableFuture<V>> flights = new ConcurrentHashMap<>();
+
+    /**
+     * Obtains the value of a key, joining the call of another thread when one is running for the same key. When the
+     * joined call fails, the call is run again by this thread, as the failure may have been caused by the limits of
+     * the other caller (its deadline, its cancellation...).
+     *
+     * @param key          key of the value
+     * @param call         call obtaining the value
+     * @param timeoutNanos maximum time to wait for the call of another thread; Long.MAX_VALUE waits without limit
+     * @param abort        future which stops the wait for the call of another thread once completed; null when
+     *                     only the timeout and interruptions stop it
+     * @return the value
+     * @throws TimeoutException      when the call of another thread did not finish in time
+     * @throws InterruptedException  when the thread was interrupted while waiting for the call of another thread
+     * @throws CancellationException when the wait for the call of another thread was aborted
+     */
+    V execute(K key, Call<V> call, long timeoutNanos, CompletableFuture<?> abort) throws Exception {
+        CompletableFuture<V> flight = new CompletableFuture<>();
+        CompletableFuture<V> running = flights.putIfAbsent(key, flight);
+
+        if (running == null) {
+            try {
+                V value = call.call();
+                flight.complete(value);
+                return value;
+            } catch (Throwable e) {
+                flight.completeExceptionally(e);
+                throw e;
+            } finally {
+                flights.remove(key, flight);
+            }
+        }
+
+        try {
+            CompletableFuture<?> wait = abort == null ? running : CompletableFuture.anyOf(running, abort);
+            if (timeoutNanos == Long.MAX_VALUE) {
+                wait.get();
+            } else {
+                wait.get(timeoutNanos, TimeUnit.NANOSECONDS);
+            }
+
+            if (!running.isDone()) {
+                throw new CancellationException("The wait for the call of another thread was aborted");
+            }
+            return running.get();
+        } catch (ExecutionException e) {
+            return call.call();
+        }
+    }
+
+    /**
+     * @return number of calls currently running
+     */
+    int size() {
+        return flights.size();
+    }
+}
@@ -0,0 +1,265 @@
+package mapper;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+
+/**
+ * List which keeps its elements on the heap until their encoded size reaches a threshold, and writes the rest of
+ * them to a temporary file instead. Spilled elements are read through a memory-mapped view of the file and decoded
+ * again every time they are accessed, so the heap only holds the first elements and the offset of each spilled one.
+ * <p>
+ * Elements are appended with {@link SpillableList#add(Object)}; they cannot be replaced or removed. The list is not
+ * thread safe, and the temporary file is deleted by {@link SpillableList#close()}.
+ *
+ * @param <T> Type of the elements
+ * @author luastan
+ * @author CardamaS99
+ * @author danimf99
+ * @author alvrogd
+ * @author OswaldOswin1
+ * @author Marcos-marpin
+ */
+public class SpillableList<T> extends AbstractList<T> implements RandomAccess, AutoCloseable {
+
+    /**
+     * Encoding of the elements written to the temporary file
+     *
+     * @param <T> Type of the elements
+     */
+    public interface Codec<T> {
+        void write(DataOutput output, T element) throws IOException;
+
+        T read(DataInput input) throws Exception;
+    }
+
+    // Size of each mapped region of the file. Elements never cross the boundary between two regions
+    private static final int REGION_SIZE = 1 << 28;
+
+    private final long threshold;
+    private final Codec<T> codec;
+
+    // Elements kept on the heap, which are the first ones of the list
+    private final ArrayList<T> heap = new ArrayList<>();
+    private long heapBytes = 0;
+
+    // Position of each spilled element in the file, followed by the position where the next one will be written
+    private long[] offsets = new long[]{0};
+    private int spilled = 0;
+
+    private final EncodingBuffer buffer = new EncodingBuffer();
+    private final DataOutputStream encoder = new DataOutputStream(buffer);
+    private FileChannel channel;
+    private MappedByteBuffer[] regions = new MappedByteBuffer[0];
+
+    /**
+     * @param threshold maximum encoded size, in bytes, of the elements kept on the heap
+     * @param codec     encoding of the elements
+     */
+    public SpillableList(long threshold, Codec<T> codec) {
+        this.threshold = threshold;
+        this.codec = codec;
+    }
+
+    /**
+     * Appends an element to the list, writing it to the temporary file once the threshold has been reached
+     *
+     * @param element element to be added
+     * @return true
+     * @throws UncheckedIOException when the element cannot be encoded or written
+     */
+    @Override
+    public boolean add(T element) {
+        try {
+            buffer.reset();
+            codec.write(encoder, element);
+            encoder.flush();
+
+            if (spilled == 0 && heapBytes + buffer.size() <= threshold) {
+                heap.add(element);
+                heapBytes += buffer.size();
+            } else {
+                spill();
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+
+        modCount++;
+        return true;
+    }
+
+    @Override
+    public T get(int index) {
+        if (index < 0 || index >= size()) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size());
+        }
+        if (index < heap.size()) {
+            return heap.get(index);
+        }
+
+        int position = index - heap.size();
+        try {
+            ByteBuffer element = slice(offsets[position], (int) (offsets[position + 1] - offsets[position]));
+            return codec.read(new DataInputStream(new ByteBufferInputStream(element)));
+        } catch (Exception e) {
+            throw new IllegalStateException("Spilled element " + index + " cannot be read: " + e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public int size() {
+        return heap.size() + spilled;
+    }
+
+    /**
+     * @return true when some elements have been written to the temporary file
+     */
+    public boolean isSpilled() {
+        return spilled > 0;
+    }
+
+    /**
+     * Releases the temporary file. Spilled elements cannot be accessed afterwards.
+     */
+    @Override
+    public void close() throws IOException {
+        regions = new MappedByteBuffer[0];
+        if (channel != null) {
+            channel.close();
+            channel = null;
+        }
+    }
+
+    /**
+     * Writes the encoded element held by the buffer at the end of the file
+     */
+    private void spill() throws IOException {
+        if (channel == null) {
+            Path file = Files.createTempFile("mapper", ".spill");
+            channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                    StandardOpenOption.DELETE_ON_CLOSE);
+        }
+
+        int length = buffer.size();
+        long position = offsets[spilled];
+        if (length > REGION_SIZE) {
+            throw new IOException("Elements larger than " + REGION_SIZE + " bytes cannot be spilled");
+        }
+
+        // Elements which do not fit in the rest of the region start on the next one
+        if (position / REGION_SIZE != (position + length - 1) / REGION_SIZE) {
+            position = (position / REGION_SIZE + 1) * REGION_SIZE;
+            offsets[spilled] = position;
+        }
+
+        ByteBuffer content = ByteBuffer.wrap(buffer.array(), 0, length);
+        while (content.hasRemaining()) {
+            channel.write(content, position + content.position());
+        }
+
+        if (spilled + 2 > offsets.length) {
+            offsets = Arrays.copyOf(offsets, offsets.length * 2);
+        }
+        offsets[++spilled] = position + length;
+    }
+
+    /**
+     * Obtains the content of a spilled element, mapping its region of the file when needed
+     */
+    private ByteBuffer slice(long position, int length) throws IOException {
+        if (channel == null) {
+            throw new IOException("The list has been closed");
+        }
+
+        int region = (int) (position / REGION_SIZE);
+        int start = (int) (position % REGION_SIZE);
+
+        if (region >= regions.length) {
+            regions = Arrays.copyOf(regions, region + 1);
+        }
+
+        // Regions are mapped again when they have grown since they were mapped
+        MappedByteBuffer mapped = regions[region];
+        if (mapped == null || mapped.capacity() < start + length) {
+            long regionStart = (long) region * REGION_SIZE;
+            long size = Math.min(REGION_SIZE, offsets[spilled] - regionStart);
+            mapped = channel.map(FileChannel.MapMode.READ_ONLY, regionStart, size);
+            regions[region] = mapped;
+        }
+
+        ByteBuffer element = mapped.duplicate();
+        element.position(start);
+        element.limit(start + length);
+        return element.slice();
+    }
+
+    /**
+     * Reusable buffer exposing its content without copying it
+     */
+    private static final class EncodingBuffer extends ByteArrayOutputStream {
+        private byte[] array() {
+            return buf;
+        }
+    }
+
+    private static final class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+
+        private ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) {
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            length = Math.min(length, buffer.remaining());
+            buffer.get(bytes, offset, length);
+            return length;
+        }
+    }
+
+    /**
+     * Codec of the rows of a query: the values of each column are written in the order of the given columns
+     *
+     * @param columns column names of the rows
+     * @return the codec
+     */
+    static Codec<Map<String, Object>> mapCodec(List<String> columns) {
+        return new Codec<Map<String, Object>>() {
+            @Override
+            public void write(DataOutput output, Map<String, Object> row) throws IOException {
+                for (String column : columns) {
+                    ValueCodec.write(output, row.get(column));
+                }
+            }
+
+            @Override
+            public Map<String, Object> read(DataInput input) throws IOException {
+                java.util.HashMap<String, Object> row = new HashMap<>();
+                for (String column : columns) {
+                    row.put(column, ValueCodec.read(input));
+                }
+                return row;
+            }
+        };
+    }
+}
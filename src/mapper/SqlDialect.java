@@ -0,0 +1,278 @@
+package mapper;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * SQL variants understood by the mappers. Only the sentences which cannot be written in a portable way are generated
+ * through the dialect.
+ *
+ * @author luastan
+ * @author CardamaS99
+ * @author danimf99
+ * @author alvrogd
+ * @author OswaldOswin1
+ * @author Marcos-marpin
+ */
+public enum SqlDialect {
+
+    /**
+     * PostgreSQL (and SQLite): INSERT ... ON CONFLICT (pk) DO UPDATE
+     */
+    POSTGRESQL {
+        @Override
+        public String upsert(String table, List<String> columns, List<String> pkColumns) {
+            StringBuilder builder = new StringBuilder(insert(table, columns))
+                    .append(" ON CONFLICT (").append(String.join(", ", pkColumns)).append(") DO ");
+            List<String> updated = nonKeys(columns, pkColumns);
+
+            if (updated.isEmpty()) {
+                return builder.append("NOTHING").toString();
+            }
+
+            return builder.append("UPDATE SET ").append(updated.stream().map(c -> c + " = EXCLUDED." + c)
+                    .collect(Collectors.joining(", "))).toString();
+        }
+    },
+
+    /**
+     * MySQL and MariaDB: INSERT ... ON DUPLICATE KEY UPDATE
+     */
+    MYSQL {
+        @Override
+        public String upsert(String table, List<String> columns, List<String> pkColumns) {
+            List<String> updated = nonKeys(columns, pkColumns);
+
+            // Updating a key column with its own value is a no-op that keeps the statement valid
+            if (updated.isEmpty()) {
+                updated = pkColumns;
+            }
+
+            return insert(table, columns) + " ON DUPLICATE KEY UPDATE " + updated.stream()
+                    .map(c -> c + " = VALUES(" + c + ")").collect(Collectors.joining(", "));
+        }
+    },
+
+    /**
+     * H2: MERGE INTO ... KEY (pk) VALUES
+     */
+    H2 {
+        @Override
+        public String upsert(String table, List<String> columns, List<String> pkColumns) {
+            return "MERGE INTO " + table + " (" + String.join(", ", columns) + ") KEY (" +
+                    String.join(", ", pkColumns) + ") VALUES (" + placeholders(columns.size()) + ")";
+        }
+    },
+
+    /**
+     * Oracle: MERGE INTO ... USING (SELECT ... FROM dual); every SELECT needs a FROM clause
+     */
+    ORACLE {
+        @Override
+        public String upsert(String table, List<String> columns, List<String> pkColumns) {
+            return merge(table, "(SELECT " + columns.stream().map(c -> "? " + c).collect(Collectors.joining(", ")) +
+                    " FROM dual) s", columns, pkColumns);
+        }
+
+        @Override
+        public String exists(String query) {
+            return super.exists(query) + " FROM dual";
+        }
+
+        @Override
+        public String limit(String query) {
+            return query + " FETCH FIRST ? ROWS ONLY";
+        }
+    },
+
+    /**
+     * Microsoft SQL Server: MERGE terminated by a semicolon; subqueries and derived tables only accept ORDER BY along
+     * with OFFSET
+     */
+    SQLSERVER {
+        @Override
+        public String upsert(String table, List<String> columns, List<String> pkColumns) {
+            return STANDARD.upsert(table, columns, pkColumns) + ";";
+        }
+
+        @Override
+        public String limit(String query) {
+            // OFFSET ... FETCH is only accepted after an ORDER BY clause
+            String order = topLevel(query).contains(" ORDER BY ") ? "" : " ORDER BY (SELECT NULL)";
+            return query + order + " OFFSET 0 ROWS FETCH NEXT ? ROWS ONLY";
+        }
+
+        @Override
+        protected String subquery(String query) {
+            String clauses = topLevel(query);
+            return clauses.contains(" ORDER BY ") && !clauses.contains(" OFFSET ") ? query + " OFFSET 0 ROWS" : query;
+        }
+    },
+
+    /**
+     * SQL:2003 MERGE statement, used when the database is not known. Scalar queries are written with a FROM clause,
+     * which some databases require
+     */
+    STANDARD {
+        @Override
+        public String upsert(String table, List<String> columns, List<String> pkColumns) {
+            return merge(table, "(VALUES (" + placeholders(columns.size()) + ")) s (" + String.join(", ", columns) +
+                    ")", columns, pkColumns);
+        }
+
+        @Override
+        public String exists(String query) {
+            return "SELECT COUNT(*) FROM (SELECT 1 x FROM " + derivedTable(query, "q") + " FETCH FIRST 1 ROWS ONLY) e";
+        }
+
+        @Override
+        public String limit(String query) {
+            return query + " FETCH FIRST ? ROWS ONLY";
+        }
+    };
+
+    /**
+     * Generates a statement that inserts a row or, when a row with the same primary key already exists, updates it.
+     * The statement has one parameter per column, in the given order.
+     *
+     * @param table     table name
+     * @param columns   columns to be written, including the primary keys
+     * @param pkColumns primary key columns
+     * @return the SQL code of the statement
+     */
+    public abstract String upsert(String table, List<String> columns, List<String> pkColumns);
+
+    /**
+     * Generates a query which returns 1 when another query returns any row, and 0 otherwise. The database stops at
+     * the first row of the query, and no row is sent back.
+     *
+     * @param query query to be checked, which may contain ? parameters and an ORDER BY clause
+     * @return the SQL code of the query, with the same parameters
+     */
+    public String exists(String query) {
+        return "SELECT CASE WHEN EXISTS (" + subquery(query) + ") THEN 1 ELSE 0 END";
+    }
+
+    /**
+     * Limits the number of rows returned by a query: query LIMIT ?, or its equivalent in the dialect
+     *
+     * @param query query, which may contain ? parameters and an ORDER BY clause, but no row limit
+     * @return the SQL code of the limited query, whose last parameter is the maximum number of rows
+     */
+    public String limit(String query) {
+        return query + " LIMIT ?";
+    }
+
+    /**
+     * Writes a query as a derived table, to be used in the FROM clause of another one
+     *
+     * @param query query, which may contain ? parameters and an ORDER BY clause
+     * @param alias name of the derived table
+     * @return (query) alias
+     */
+    public String derivedTable(String query, String alias) {
+        return "(" + subquery(query) + ") " + alias;
+    }
+
+    /**
+     * Adapts a query to be nested into another one
+     */
+    protected String subquery(String query) {
+        return query;
+    }
+
+    /**
+     * Finds out the dialect of the database behind a connection
+     *
+     * @param connection database connection
+     * @return the matching dialect; {@link SqlDialect#STANDARD STANDARD} when the database is not known
+     */
+    public static SqlDialect of(Connection connection) throws SQLException {
+        String product = connection.getMetaData().getDatabaseProductName().toLowerCase();
+
+        if (product.contains("postgres") || product.contains("sqlite")) {
+            return POSTGRESQL;
+        } else if (product.contains("mysql") || product.contains("mariadb")) {
+            return MYSQL;
+        } else if (product.contains("h2")) {
+            return H2;
+        } else if (product.contains("oracle")) {
+            return ORACLE;
+        } else if (product.contains("microsoft") || product.contains("sql server")) {
+            return SQLSERVER;
+        }
+
+        return STANDARD;
+    }
+
+    /**
+     * MERGE INTO [TABLE] t USING [SOURCE] ON (...) WHEN MATCHED THEN UPDATE ... WHEN NOT MATCHED THEN INSERT ...
+     *
+     * @param source row of values named s, with one column per written column
+     */
+    private static String merge(String table, String source, List<String> columns, List<String> pkColumns) {
+        StringBuilder builder = new StringBuilder("MERGE INTO ").append(table).append(" t USING ").append(source)
+                .append(" ON (").append(pkColumns.stream().map(c -> "t." + c + " = s." + c)
+                .collect(Collectors.joining(" AND "))).append(")");
+        List<String> updated = nonKeys(columns, pkColumns);
+
+        if (!updated.isEmpty()) {
+            builder.append(" WHEN MATCHED THEN UPDATE SET ").append(updated.stream()
+                    .map(c -> c + " = s." + c).collect(Collectors.joining(", ")));
+        }
+
+        return builder.append(" WHEN NOT MATCHED THEN INSERT (").append(String.join(", ", columns))
+                .append(") VALUES (").append(columns.stream().map(c -> "s." + c)
+                        .collect(Collectors.joining(", "))).append(")").toString();
+    }
+
+    /**
+     * Obtains the clauses of a query which are not nested in parentheses nor quoted, in upper case and with every
+     * run of whitespace turned into a single space, so they can be searched for keywords
+     */
+    private static String topLevel(String query) {
+        StringBuilder builder = new StringBuilder(" ");
+        int depth = 0;
+        char quote = 0;
+
+        for (char c : query.toCharArray()) {
+            if (quote != 0) {
+                quote = c == quote ? 0 : quote;
+            } else if (c == '\'' || c == '"') {
+                quote = c;
+            } else if (c == '(') {
+                depth++;
+            } else if (c == ')') {
+                depth--;
+            } else if (depth == 0) {
+                boolean space = Character.isWhitespace(c);
+                if (!space || builder.charAt(builder.length() - 1) != ' ') {
+                    builder.append(space ? ' ' : Character.toUpperCase(c));
+                }
+            }
+        }
+
+        return builder.append(' ').toString();
+    }
+
+    private static String insert(String table, List<String> columns) {
+        return "INSERT INTO " + table + " (" + String.join(", ", columns) + ") VALUES (" +
+                placeholders(columns.size()) + ")";
+    }
+
+    private static String placeholders(int count) {
+        StringBuilder builder = new StringBuilder();
+
+        for (int i = 0; i < count; i++) {
+            builder.append(i == 0 ? "?" : ", ?");
+        }
+
+        return builder.toString();
+    }
+
+    private static List<String> nonKeys(List<String> columns, List<String> pkColumns) {
+        return columns.stream().filter(c -> !pkColumns.contains(c)).collect(Collectors.toList());
+    }
+}
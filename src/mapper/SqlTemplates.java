@@ -0,0 +1,204 @@
+package mapper;
+
+import java.util.BitSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+/**
+ * Compiles the SQL sentences generated by the mappers once per mapped class and column mask, instead of building them
+ * for every operation. Sentences are interned, so the same String instance is returned every time and it can be used
+ * as a stable key to cache statements and to group batches.
+ *
+ * @author luastan
+ * @author CardamaS99
+ * @author danimf99
+ * @author alvrogd
+ * @author OswaldOswin1
+ * @author Marcos-marpin
+ */
+public final class SqlTemplates {
+
+    private static final ConcurrentHashMap<Key, String> TEMPLATES = new ConcurrentHashMap<>();
+
+    private SqlTemplates() {
+    }
+
+    /**
+     * INSERT INTO [TABLE] (written columns, default columns) VALUES (?, ..., default, ...)
+     *
+     * @param clase   mapped class
+     * @param written mask of the columns whose values are given, in column order
+     * @return the insertion sentence; columns with a default value which are not written are sent as default
+     */
+    public static String insert(Class<?> clase, BitSet written) {
+        return template("INSERT", clase, written, () -> {
+            EntityMetadata metadata = EntityMetadata.of(clase);
+            List<String> columns = metadata.columns(written);
+            BitSet defaults = new BitSet();
+
+            for (String column : metadata.getDefaultColumns()) {
+                if (!columns.contains(column)) {
+                    defaults.set(columns.size());
+                    columns.add(column);
+                }
+            }
+
+            return insert(metadata.getTable(), columns, defaults);
+        });
+    }
+
+    /**
+     * INSERT INTO [TABLE] (columns) VALUES (?, ..., default, ...)
+     * <p>
+     * Unlike the sentences of mapped classes, it is built on every call and not kept: tables and column lists come
+     * from the rows given at run time, so their combinations are not bounded.
+     *
+     * @param table    table name
+     * @param columns  columns to be written
+     * @param defaults mask of the columns sent as default, by position in the column list
+     * @return the insertion sentence
+     */
+    public static String insert(String table, List<String> columns, BitSet defaults) {
+        StringBuilder insertionBuilder = new StringBuilder("INSERT INTO ").append(table).append(" (");
+        StringBuilder valueBuilder = new StringBuilder(" VALUES (");
+
+        for (int i = 0; i < columns.size(); i++) {
+            insertionBuilder.append(i == 0 ? "" : ",").append(columns.get(i));
+            valueBuilder.append(i == 0 ? "" : ",").append(defaults.get(i) ? "default" : "?");
+        }
+
+        return insertionBuilder.append(")").append(valueBuilder).append(")").toString();
+    }
+
+    /**
+     * UPDATE [TABLE] SET a = ?, b = ? WHERE [PRIMARY_KEY] = ? AND ...
+     * <p>
+     * When the class has a version column, it gets increased and checked too: UPDATE [TABLE] SET a = ?, b = ?,
+     * version = version + 1 WHERE [PRIMARY_KEY] = ? AND ... AND version = ?
+     *
+     * @param clase   mapped class
+     * @param updated mask of the columns to be updated, in column order; it must not include the version column
+     * @return the update sentence; its parameters are the updated columns followed by the primary keys and, when
+     * there is a version column, the expected version
+     */
+    public static String update(Class<?> clase, BitSet updated) {
+        return template("UPDATE", clase, updated, () -> {
+            EntityMetadata metadata = EntityMetadata.of(clase);
+            StringBuilder updateBuilder = new StringBuilder("UPDATE ").append(metadata.getTable()).append(" SET ");
+            List<String> columns = metadata.columns(updated);
+
+            for (int i = 0; i < columns.size(); i++) {
+                updateBuilder.append(i == 0 ? "" : ", ").append(columns.get(i)).append(" = ?");
+            }
+
+            String version = metadata.getVersionColumn();
+            if (version != null) {
+                updateBuilder.append(", ").append(version).append(" = ").append(version).append(" + 1");
+            }
+
+            return updateBuilder.append(pkCondition(metadata)).append(versionCondition(metadata)).toString();
+        });
+    }
+
+    /**
+     * DELETE FROM [TABLE] WHERE [PRIMARY_KEY] = ? AND ... [AND version = ?]
+     *
+     * @param clase mapped class
+     * @return the deletion sentence; its parameters are the primary keys and, when the class has a version column,
+     * the expected version
+     */
+    public static String delete(Class<?> clase) {
+        return template("DELETE", clase, null, () -> "DELETE FROM " + EntityMetadata.of(clase).getTable() +
+                pkCondition(EntityMetadata.of(clase)) + versionCondition(EntityMetadata.of(clase)));
+    }
+
+    /**
+     * SELECT [COLUMNS] FROM [TABLE] WHERE [PRIMARY_KEY] = ? AND ...
+     *
+     * @param clase mapped class
+     * @return the query; its parameters are the primary keys
+     */
+    public static String selectByPk(Class<?> clase) {
+        return template("SELECT", clase, null, () -> "SELECT " + Mapper.selectColumns(clase) + " FROM " +
+                EntityMetadata.of(clase).getTable() + pkCondition(EntityMetadata.of(clase)));
+    }
+
+    /**
+     * SELECT CASE WHEN EXISTS (SELECT 1 FROM [TABLE] WHERE [PRIMARY_KEY] = ? AND ...) THEN 1 ELSE 0 END, as written
+     * by {@link SqlDialect#exists(String)}
+     *
+     * @param clase   mapped class
+     * @param dialect dialect of the database
+     * @return the query, which returns 1 when the row exists; its parameters are the primary keys
+     */
+    public static String existsByPk(Class<?> clase, SqlDialect dialect) {
+        return template("EXISTS " + dialect, clase, null, () -> dialect.exists("SELECT 1 FROM " +
+                EntityMetadata.of(clase).getTable() + pkCondition(EntityMetadata.of(clase))));
+    }
+
+    /**
+     * @return number of compiled sentences
+     */
+    public static int size() {
+        return TEMPLATES.size();
+    }
+
+    private static String pkCondition(EntityMetadata metadata) {
+        if (metadata.getPkColumns().isEmpty()) {
+            throw new IllegalArgumentException(metadata.getMappedClass().getName() + " has no primary keys, so its " +
+                    "rows cannot be addressed one by one");
+        }
+
+        return " WHERE " + String.join(" = ? AND ", metadata.getPkColumns()) + " = ?";
+    }
+
+    private static String versionCondition(EntityMetadata metadata) {
+        return metadata.getVersionColumn() == null ? "" : " AND " + metadata.getVersionColumn() + " = ?";
+    }
+
+    private static String template(String kind, Class<?> clase, BitSet mask, Supplier<String> compiler) {
+        String template = TEMPLATES.get(new Key(kind, clase, mask));
+
+        if (template == null) {
+            template = compiler.get().intern();
+
+            // The key gets its own copy, as the caller may reuse the given mask
+            String previous = TEMPLATES.putIfAbsent(new Key(kind, clase, mask == null ? null : (BitSet) mask.clone()),
+                    template);
+            template = previous != null ? previous : template;
+        }
+
+        return template;
+    }
+
+    private static final class Key {
+        private final String kind;
+        private final Class<?> clase;
+        private final BitSet mask;
+
+        private Key(String kind, Class<?> clase, BitSet mask) {
+            this.kind = kind;
+            this.clase = clase;
+            this.mask = mask;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return kind.equals(other.kind) && clase.equals(other.clase) && Objects.equals(mask, other.mask);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(kind, clase, mask);
+        }
+    }
+}
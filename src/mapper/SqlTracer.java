@@ -0,0 +1,143 @@
+package mapper;
+
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Logs the SQL statements executed by the mappers when they are slower than a configurable threshold, and a sample
+ * of the fast ones. Each entry contains the SQL code, the bound parameters (redacted), the number of rows and the
+ * elapsed time.
+ * <p>
+ * Mappers without a tracer don't capture anything, so tracing has almost no cost when it is disabled:
+ * <pre>
+ * Mapper.setDefaultTracer(new SqlTracer().setSlowThreshold(200, TimeUnit.MILLISECONDS).setSampleRate(0.001));
+ * </pre>
+ *
+ * @author luastan
+ * @author CardamaS99
+ * @author danimf99
+ * @author alvrogd
+ * @author OswaldOswin1
+ * @author Marcos-marpin
+ */
+public class SqlTracer {
+
+    /**
+     * Shows every parameter as it is
+     */
+    public static final Function<Object, String> SHOW_ALL = String::valueOf;
+
+    /**
+     * Hides the content of textual parameters, which are the ones likely to hold personal data, and shows the rest
+     */
+    public static final Function<Object, String> REDACT_STRINGS = parameter ->
+            parameter instanceof CharSequence || parameter instanceof Character ? "'***'" : String.valueOf(parameter);
+
+    /**
+     * Hides every non null parameter
+     */
+    public static final Function<Object, String> REDACT_ALL = parameter -> parameter == null ? "null" : "***";
+
+    private volatile long slowThresholdNanos = TimeUnit.MILLISECONDS.toNanos(500);
+    private volatile double sampleRate = 0;
+    private volatile Function<Object, String> redactor = REDACT_STRINGS;
+    private volatile Logger logger = Logger.getLogger("mapper.sql");
+
+    /**
+     * Defines the elapsed time from which every statement gets logged
+     *
+     * @param threshold elapsed time
+     * @param unit      time unit of the threshold
+     * @return the tracer instance
+     */
+    public SqlTracer setSlowThreshold(long threshold, TimeUnit unit) {
+        this.slowThresholdNanos = unit.toNanos(threshold);
+        return this;
+    }
+
+    /**
+     * Defines the fraction of the statements under the threshold that get logged
+     *
+     * @param sampleRate value between 0 (none) and 1 (all of them)
+     * @return the tracer instance
+     */
+    public SqlTracer setSampleRate(double sampleRate) {
+        this.sampleRate = Math.max(0, Math.min(1, sampleRate));
+        return this;
+    }
+
+    /**
+     * Defines how the parameters are shown in the log
+     *
+     * @param redactor function that converts each parameter into the text to be logged
+     * @return the tracer instance
+     * @see SqlTracer#SHOW_ALL
+     * @see SqlTracer#REDACT_STRINGS
+     * @see SqlTracer#REDACT_ALL
+     */
+    public SqlTracer setRedactor(Function<Object, String> redactor) {
+        this.redactor = redactor;
+        return this;
+    }
+
+    /**
+     * Defines the logger where entries are written. Slow statements are logged with {@link Level#WARNING WARNING}
+     * level, and sampled ones with {@link Level#INFO INFO} level.
+     *
+     * @param logger logger to be used
+     * @return the tracer instance
+     */
+    public SqlTracer setLogger(Logger logger) {
+        this.logger = logger;
+        return this;
+    }
+
+    public long getSlowThresholdNanos() {
+        return slowThresholdNanos;
+    }
+
+    public double getSampleRate() {
+        return sampleRate;
+    }
+
+    /**
+     * Logs an executed statement if it is slow or if it has been sampled
+     *
+     * @param table      table affected by the statement
+     * @param sql        SQL code of the statement
+     * @param parameters parameters bound to the statement; may be null
+     * @param nanos      elapsed time
+     * @param rows       returned or affected rows; -1 when it is unknown
+     */
+    public void trace(String table, String sql, List<?> parameters, long nanos, long rows) {
+        boolean slow = nanos >= slowThresholdNanos;
+
+        if (!slow && (sampleRate == 0 || ThreadLocalRandom.current().nextDouble() >= sampleRate)) {
+            return;
+        }
+
+        Level level = slow ? Level.WARNING : Level.INFO;
+        if (!logger.isLoggable(level)) {
+            return;
+        }
+
+        StringBuilder entry = new StringBuilder(slow ? "Slow statement" : "Sampled statement")
+                .append(String.format(" [%.3f ms]", nanos / 1e6))
+                .append(" table=").append(table.equals("") ? "-" : table)
+                .append(" rows=").append(rows)
+                .append(" sql=").append(sql)
+                .append(" params=[");
+
+        if (parameters != null) {
+            for (int i = 0; i < parameters.size(); i++) {
+                entry.append(i == 0 ? "" : ", ").append(redactor.apply(parameters.get(i)));
+            }
+        }
+
+        logger.log(level, entry.append("]").toString());
+    }
+}
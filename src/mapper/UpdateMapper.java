@@ -7,10 +7,8 @@ import java.lang.reflect.Field;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.SQLException;
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.HashMap;
-import java.util.List;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
 
 
 /**
@@ -27,14 +25,18 @@ import java.util.List;
 public class UpdateMapper<T> extends Mapper<T> {
     private Class<T> clase;
     private List<T> elementsUpdate;
-    private ArrayList<String> columnNames;
-    private HashMap<String, Field> attributes;
 
     public UpdateMapper(Connection connection) {
         super(connection);
         this.elementsUpdate = new ArrayList<>();
-        this.columnNames = new ArrayList<>();
-        this.attributes = new HashMap<>();
+    }
+
+    /**
+     * @param router Router providing the connections; updates are sent to its primary database
+     */
+    public UpdateMapper(ConnectionRouter router) {
+        super(router, true);
+        this.elementsUpdate = new ArrayList<>();
     }
 
     /**
@@ -92,95 +94,208 @@ public class UpdateMapper<T> extends Mapper<T> {
     }
 
     /**
-     * Updates the objects from the update pool on the database
+     * Defines the listener to be notified about the operations performed by this mapper
+     *
+     * @param listener listener to be used; null disables the notifications
+     * @return update mapper which is being built
+     */
+    @Override
+    public UpdateMapper<T> setListener(MapperListener listener) {
+        return (UpdateMapper<T>) super.setListener(listener);
+    }
+
+    /**
+     * Defines the tracer that logs the statements executed by this mapper
+     *
+     * @param tracer tracer to be used; null disables the tracing
+     * @return update mapper which is being built
+     */
+    @Override
+    public UpdateMapper<T> setTracer(SqlTracer tracer) {
+        return (UpdateMapper<T>) super.setTracer(tracer);
+    }
+
+    /**
+     * Defines the SQL dialect used to generate the sentences that are not portable between databases
+     *
+     * @param dialect dialect to be used; null to detect it from the connection
+     * @return update mapper which is being built
+     */
+    @Override
+    public UpdateMapper<T> setDialect(SqlDialect dialect) {
+        return (UpdateMapper<T>) super.setDialect(dialect);
+    }
+
+    /**
+     * Limits the time the operations of the mapper can take, counted from now
+     *
+     * @param timeout maximum time; 0 or less removes the limit
+     * @param unit    unit of the timeout
+     * @return update mapper which is being built
+     */
+    @Override
+    public UpdateMapper<T> setTimeout(long timeout, TimeUnit unit) {
+        return (UpdateMapper<T>) super.setTimeout(timeout, unit);
+    }
+
+    /**
+     * Updates the objects from the update pool on the database. Objects which
+     * update the same columns share the same SQL sentence and are sent as a
+     * single JDBC batch.
+     * <p>
+     * When the mapped class has a {@link MapperColumn#version() version}
+     * column, each row is only updated if its version is still the one of the
+     * object, and then the version gets increased in the row and the object.
+     * Otherwise an {@link OptimisticLockException OptimisticLockException} is
+     * thrown once every batch has been executed, and no version is increased.
+     * In auto-commit mode the batches run in a transaction of their own which
+     * is then rolled back; inside a transaction which is already open, rolling
+     * it back is up to its owner.
      *
      * @param allowNullValues On true allows null values to be inserted into the database
      */
     public void update(boolean allowNullValues) throws Exception {
-        PreparedStatement statement;
-        String columnName;
-        StringBuilder updateBuilder = new StringBuilder("UPDATE ").append(mappedClass.getAnnotation(MapperTable.class)
-                .nombre()).append(" SET ");
-
-        // Configures the connection to the database
-        configureConnection();
+        try {
+            EntityMetadata metadata = EntityMetadata.of(mappedClass);
+            String table = metadata.getTable();
+            Object value;
+            long start;
 
-        /* SET clause building */
+            // Parameters of each object indexed by the SQL template they use, keeping the order of the pool
+            LinkedHashMap<String, List<Object[]>> batches = new LinkedHashMap<>();
+            LinkedHashMap<String, List<T>> batchObjects = new LinkedHashMap<>();
+            Field versionField = metadata.getVersionField();
 
-        // Loops over the elements to be updated
-        for (T objectUpdate : this.elementsUpdate) {
+            // Configures the connection to the database
+            configureConnection();
 
-            // Loops over the object's class fields making them accessible
-            for (Field field : mappedClass.getDeclaredFields()) {
-                field.setAccessible(true);
+            /* SET clause building */
 
-                // Se comprueba que el atributo tiene @MapperColumn y que no es null
-                try {
-                    // Only annotated and non null which are not primary keys fields get updated into the database
-                    if (field.isAnnotationPresent(MapperColumn.class) &&
-                            (allowNullValues || field.get(objectUpdate) != null) &&
-                            !field.getAnnotation(MapperColumn.class).pkey()) {
-                        // Colum name for the current Field. If it's not annotated, field name gets used
-                        columnName = extractColumnName(field);
-
-                        // Value assignment
-                        updateBuilder.append(columnName).append(" = ?,");
-
-                        // Column names and fields get stored for later use
-                        this.columnNames.add(columnName);
-                        this.attributes.put(columnName, field);
+            try {
+                // Loops over the elements to be updated
+                for (T objectUpdate : this.elementsUpdate) {
+                    HashMap<String, Object> values = new HashMap<>();
+
+                    // Only non null fields which are not primary keys get updated into the database. The version is
+                    // increased by the database
+                    for (Map.Entry<String, Field> field : metadata.getPlainFields().entrySet()) {
+                        value = field.getValue().get(objectUpdate);
+                        if ((allowNullValues || value != null) && !metadata.getPkColumns().contains(field.getKey()) &&
+                                field.getValue() != versionField) {
+                            values.put(field.getKey(), value);
+                        }
                     }
-                } catch (IllegalAccessException e) {
-                    throw new Exception(e.getMessage());
-                }
-            }
-
-            // Crops the update builder to get rid of the extra ","
-            updateBuilder.deleteCharAt(updateBuilder.length() - 1);
 
-            /* WHERE building */
+                    // Foreign keys are updated through their local columns
+                    Map<String, Object> fks = getFKs(objectUpdate);
+                    for (Map.Entry<Field, List<String>> field : metadata.getForeignKeyColumns().entrySet()) {
+                        if (!field.getKey().getAnnotation(MapperColumn.class).pkey() &&
+                                (allowNullValues || field.getKey().get(objectUpdate) != null)) {
+                            for (String column : field.getValue()) {
+                                values.put(column, fks.get(column));
+                            }
+                        }
+                    }
 
-            updateBuilder.append(" WHERE ");
-            for (Field field : mappedClass.getDeclaredFields()) {
-                // Allows reflection on the Field
-                field.setAccessible(true);
+                    if (values.isEmpty()) {
+                        continue;
+                    }
 
-                // Performs the actions on Mappeable fields which also happen to be Primary Keys
-                if (field.isAnnotationPresent(MapperColumn.class) && field.getAnnotation(MapperColumn.class).pkey()) {
-                    // Colum name for the current Field. If it's not annotated, field name gets used
-                    columnName = field.getAnnotation(MapperColumn.class).columna();
-                    columnName = columnName.equals("") ? field.getName() : columnName;
+                    /* WHERE building */
 
-                    // Value check
-                    updateBuilder.append(columnName).append(" = ?,");
+                    // Updated columns followed by the primary keys and the version, in the order of the template
+                    BitSet mask = metadata.mask(values.keySet());
+                    Map<String, Object> atomicPKs = getAtomicPK(objectUpdate);
+                    Object[] params = new Object[values.size() + metadata.getPkColumns().size() +
+                            (versionField == null ? 0 : 1)];
+                    int index = 0;
+                    for (int i = mask.nextSetBit(0); i >= 0; i = mask.nextSetBit(i + 1)) {
+                        params[index++] = values.get(metadata.getColumns().get(i));
+                    }
+                    for (String pkColumn : metadata.getPkColumns()) {
+                        params[index++] = atomicPKs.get(pkColumn);
+                    }
+                    if (versionField != null) {
+                        params[index] = versionField.get(objectUpdate);
+                    }
 
-                    // Column names and fields get stored for later use
-                    this.columnNames.add(columnName);
-                    this.attributes.put(columnName, field);
+                    String template = SqlTemplates.update(mappedClass, mask);
+                    batches.computeIfAbsent(template, k -> new ArrayList<>()).add(params);
+                    batchObjects.computeIfAbsent(template, k -> new ArrayList<>()).add(objectUpdate);
                 }
+            } catch (IllegalAccessException e) {
+                throw MapperException.of(e);
             }
 
-            // Crops the update builder to clean the "," once again
-            updateBuilder.deleteCharAt(updateBuilder.length() - 1);
-
             try {
-                statement = connection.prepareStatement(updateBuilder.toString());
+                // Versioned updates are applied all together or not at all
+                Connection current = connection(false);
+                boolean transaction = versionField != null && current.getAutoCommit();
+                List<Object> stale = new ArrayList<>();
 
-                // Loops over all the columns to be inserted while obtaining the value from reflection
-                for (int i = 0; i < this.columnNames.size(); i++) {
-                    statement.setObject(i + 1, this.attributes.get(this.columnNames.get(i)).get(objectUpdate));
+                if (transaction) {
+                    current.setAutoCommit(false);
                 }
+                try {
+                    for (Map.Entry<String, List<Object[]>> batch : batches.entrySet()) {
+                        try (PreparedStatement statement = prepare(batch.getKey(), MapperListener.Operation.UPDATE,
+                                table)) {
+                            for (Object[] params : batch.getValue()) {
+                                for (int i = 0; i < params.length; i++) {
+                                    statement.setObject(i + 1, params[i]);
+                                }
+                                statement.addBatch();
+                            }
+
+                            // Update gets executed
+                            start = System.nanoTime();
+                            int[] counts = statement.executeBatch();
+                            long elapsed = System.nanoTime() - start;
+                            long updated = Arrays.stream(counts).filter(count -> count > 0).asLongStream().sum();
+                            listener.statementExecuted(table, MapperListener.Operation.UPDATE, elapsed, updated);
+                            trace(table, batch.getKey(), batch.getValue().size() == 1 ?
+                                    Arrays.asList(batch.getValue().get(0)) : null, elapsed, updated);
+
+                            if (versionField != null) {
+                                stale.addAll(staleObjects(counts, batchObjects.get(batch.getKey())));
+                            }
+                        }
+                    }
 
-                // Update gets executed
-                statement.executeUpdate();
-                statement.close();
-            } catch (SQLException | IllegalAccessException e) {
-                throw new Exception(e.getMessage());
+                    if (!stale.isEmpty()) {
+                        throw new OptimisticLockException(table, stale);
+                    }
+                    if (transaction) {
+                        current.commit();
+                    }
+                } catch (Exception e) {
+                    if (transaction) {
+                        try {
+                            current.rollback();
+                        } catch (SQLException rollback) {
+                            e.addSuppressed(rollback);
+                        }
+                    }
+                    throw e;
+                } finally {
+                    if (transaction) {
+                        current.setAutoCommit(true);
+                    }
+                }
+            } catch (SQLException e) {
+                throw MapperException.of(e);
+            }
+
+            // Versions are only increased once every row has been updated
+            if (versionField != null) {
+                for (List<T> objects : batchObjects.values()) {
+                    increaseVersions(objects, versionField);
+                }
             }
 
-            // Temporary data gets cleared
-            this.columnNames.clear();
-            this.attributes.clear();
+            listener.batchExecuted(table, MapperListener.Operation.UPDATE, this.elementsUpdate.size());
+        } finally {
+            releaseConnection();
         }
     }
 
@@ -0,0 +1,222 @@
+package mapper;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.sql.Time;
+import java.sql.Timestamp;
+import java.util.Date;
+
+/**
+ * Compact binary encoding of the column values handled by the mappers. Every value is written as a one byte type tag
+ * followed by its content, so it can be read back without knowing its type in advance.
+ *
+ * @author luastan
+ * @author CardamaS99
+ * @author danimf99
+ * @author alvrogd
+ * @author OswaldOswin1
+ * @author Marcos-marpin
+ */
+public final class ValueCodec {
+
+    private static final byte NULL = 0;
+    private static final byte STRING = 1;
+    private static final byte INTEGER = 2;
+    private static final byte LONG = 3;
+    private static final byte DOUBLE = 4;
+    private static final byte FLOAT = 5;
+    private static final byte SHORT = 6;
+    private static final byte BYTE = 7;
+    private static final byte BOOLEAN = 8;
+    private static final byte CHARACTER = 9;
+    private static final byte TIMESTAMP = 10;
+    private static final byte SQL_DATE = 11;
+    private static final byte TIME = 12;
+    private static final byte DATE = 13;
+    private static final byte DECIMAL = 14;
+    private static final byte BYTES = 15;
+
+    // Lengths come from files and tokens which may be corrupt or forged, so longer contents are read in pieces of
+    // this size: a wrong length runs out of input before its whole size gets allocated
+    private static final int READ_CHUNK = 8192;
+
+    private ValueCodec() {
+    }
+
+    /**
+     * Checks if a value can be encoded
+     *
+     * @param value value to be checked
+     * @return true when {@link ValueCodec#write(DataOutput, Object)} accepts the value
+     */
+    public static boolean isSupported(Object value) {
+        return value == null || value instanceof String || value instanceof Integer || value instanceof Long ||
+                value instanceof Double || value instanceof Float || value instanceof Short ||
+                value instanceof Byte || value instanceof Boolean || value instanceof Character ||
+                value instanceof Date || value instanceof BigDecimal || value instanceof byte[];
+    }
+
+    /**
+     * Writes a value
+     *
+     * @param output destination of the encoded value
+     * @param value  value to be written
+     */
+    public static void write(DataOutput output, Object value) throws IOException {
+        if (value == null) {
+            output.writeByte(NULL);
+        } else if (value instanceof String) {
+            output.writeByte(STRING);
+            writeString(output, (String) value);
+        } else if (value instanceof Integer) {
+            output.writeByte(INTEGER);
+            output.writeInt((Integer) value);
+        } else if (value instanceof Long) {
+            output.writeByte(LONG);
+            output.writeLong((Long) value);
+        } else if (value instanceof Double) {
+            output.writeByte(DOUBLE);
+            output.writeDouble((Double) value);
+        } else if (value instanceof Float) {
+            output.writeByte(FLOAT);
+            output.writeFloat((Float) value);
+        } else if (value instanceof Short) {
+            output.writeByte(SHORT);
+            output.writeShort((Short) value);
+        } else if (value instanceof Byte) {
+            output.writeByte(BYTE);
+            output.writeByte((Byte) value);
+        } else if (value instanceof Boolean) {
+            output.writeByte(BOOLEAN);
+            output.writeBoolean((Boolean) value);
+        } else if (value instanceof Character) {
+            output.writeByte(CHARACTER);
+            output.writeChar((Character) value);
+        } else if (value instanceof Timestamp) {
+            output.writeByte(TIMESTAMP);
+            output.writeLong(((Timestamp) value).getTime());
+            output.writeInt(((Timestamp) value).getNanos());
+        } else if (value instanceof java.sql.Date) {
+            output.writeByte(SQL_DATE);
+            output.writeLong(((Date) value).getTime());
+        } else if (value instanceof Time) {
+            output.writeByte(TIME);
+            output.writeLong(((Date) value).getTime());
+        } else if (value instanceof Date) {
+            output.writeByte(DATE);
+            output.writeLong(((Date) value).getTime());
+        } else if (value instanceof BigDecimal) {
+            output.writeByte(DECIMAL);
+            byte[] unscaled = ((BigDecimal) value).unscaledValue().toByteArray();
+            output.writeInt(((BigDecimal) value).scale());
+            output.writeInt(unscaled.length);
+            output.write(unscaled);
+        } else if (value instanceof byte[]) {
+            output.writeByte(BYTES);
+            output.writeInt(((byte[]) value).length);
+            output.write((byte[]) value);
+        } else {
+            throw new IOException("Unsupported value type: " + value.getClass().getName());
+        }
+    }
+
+    /**
+     * Reads a value written by {@link ValueCodec#write(DataOutput, Object)}
+     *
+     * @param input source of the encoded value
+     * @return the decoded value
+     */
+    public static Object read(DataInput input) throws IOException {
+        byte tag = input.readByte();
+
+        switch (tag) {
+            case NULL:
+                return null;
+            case STRING:
+                return readString(input);
+            case INTEGER:
+                return input.readInt();
+            case LONG:
+                return input.readLong();
+            case DOUBLE:
+                return input.readDouble();
+            case FLOAT:
+                return input.readFloat();
+            case SHORT:
+                return input.readShort();
+            case BYTE:
+                return input.readByte();
+            case BOOLEAN:
+                return input.readBoolean();
+            case CHARACTER:
+                return input.readChar();
+            case TIMESTAMP:
+                Timestamp timestamp = new Timestamp(input.readLong());
+                timestamp.setNanos(input.readInt());
+                return timestamp;
+            case SQL_DATE:
+                return new java.sql.Date(input.readLong());
+            case TIME:
+                return new Time(input.readLong());
+            case DATE:
+                return new Date(input.readLong());
+            case DECIMAL:
+                int scale = input.readInt();
+                byte[] unscaled = readBytes(input);
+                if (unscaled.length == 0) {
+                    throw new IOException("Empty decimal value");
+                }
+                return new BigDecimal(new BigInteger(unscaled), scale);
+            case BYTES:
+                return readBytes(input);
+            default:
+                throw new IOException("Unknown value tag: " + tag);
+        }
+    }
+
+    /*
+     * DataOutput.writeUTF is limited to 64KB, so Strings are written as a length followed by their UTF-8 bytes
+     */
+
+    private static void writeString(DataOutput output, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        output.writeInt(bytes.length);
+        output.write(bytes);
+    }
+
+    private static String readString(DataInput input) throws IOException {
+        return new String(readBytes(input), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Reads a length followed by that many bytes, checking the length against the input left
+     */
+    private static byte[] readBytes(DataInput input) throws IOException {
+        int length = input.readInt();
+        if (length < 0) {
+            throw new IOException("Invalid length: " + length);
+        }
+        if (length <= READ_CHUNK) {
+            byte[] bytes = new byte[length];
+            input.readFully(bytes);
+            return bytes;
+        }
+
+        // Reaching the end of the input before the whole length has been read throws EOFException
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(READ_CHUNK);
+        byte[] chunk = new byte[READ_CHUNK];
+        int remaining = length;
+        while (remaining > 0) {
+            int size = Math.min(remaining, chunk.length);
+            input.readFully(chunk, 0, size);
+            bytes.write(chunk, 0, size);
+            remaining -= size;
+        }
+        return bytes.toByteArray();
+    }
+}